@@ -0,0 +1,99 @@
+package introdb.heap;
+
+import introdb.heap.engine.Options;
+import introdb.heap.engine.StorageEngine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Store of raw keys and values, bytes are stored as they are, without any serialization.
+ *
+ * Buffer variants read from position to limit of key and value buffers and read values
+ * into caller's buffer, so hot paths don't need to allocate value arrays.
+ */
+public interface ByteStore {
+
+	static ByteStore open(Path path, int maxNrPages, int pageSize) throws IOException {
+		return open(path, maxNrPages, pageSize, Options.defaults());
+	}
+
+	static ByteStore open(Path path, int maxNrPages, int pageSize, Options options) throws IOException {
+		return new HeapByteStore(StorageEngine.of(path, maxNrPages, pageSize, options));
+	}
+
+	/**
+	 * Values which don't fit into a page with their key are stored in overflow pages.
+	 *
+	 * @throws IllegalArgumentException
+	 *             when key exceeds page size
+	 */
+	void put(byte[] key, byte[] value) throws IOException;
+
+	/**
+	 * Puts remaining bytes of key and value, positions of buffers are not changed.
+	 *
+	 * @throws IllegalArgumentException
+	 *             when key exceeds page size
+	 */
+	void put(ByteBuffer key, ByteBuffer value) throws IOException;
+
+	/**
+	 * @return value, or null when there is no such key
+	 */
+	byte[] get(byte[] key) throws IOException;
+
+	/**
+	 * Reads value into target buffer, starting at its position. When value doesn't fit
+	 * into remaining space of the buffer, nothing is read and caller can retry with a buffer
+	 * of returned size.
+	 *
+	 * @return size of value, or -1 when there is no such key
+	 */
+	int get(byte[] key, ByteBuffer target) throws IOException;
+
+	/**
+	 * Same as {@link #get(byte[], ByteBuffer)} with key taken from remaining bytes of key buffer.
+	 */
+	int get(ByteBuffer key, ByteBuffer target) throws IOException;
+
+	/**
+	 * Values larger than a page are read from disk while stream is consumed, without
+	 * materializing them in memory.
+	 *
+	 * @return stream over value, or null when there is no such key
+	 */
+	InputStream getStream(byte[] key) throws IOException;
+
+	/**
+	 * Iterates entries with keys in range, in ascending order of keys compared as unsigned bytes.
+	 * Entries are read in batches, so range doesn't have to fit in memory. Requires store opened
+	 * with {@link Options#withOrderedIndex(boolean)}.
+	 *
+	 * @param from
+	 *            first key (inclusive), null for no lower bound
+	 * @param to
+	 *            last key (exclusive), null for no upper bound
+	 */
+	Iterator<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] to);
+
+	/**
+	 * Iterates entries with keys starting with prefix, see {@link #scan(byte[], byte[])}.
+	 */
+	Iterator<Map.Entry<byte[], byte[]>> prefix(byte[] prefix);
+
+	/**
+	 * @return removed value, or null when there was no such key
+	 */
+	byte[] remove(byte[] key) throws IOException;
+
+	/**
+	 * Flushes index and releases underlying files, store can be reopened
+	 * on the same path afterwards.
+	 */
+	void close() throws IOException;
+}
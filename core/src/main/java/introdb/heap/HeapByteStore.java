@@ -0,0 +1,100 @@
+package introdb.heap;
+
+import introdb.heap.engine.Record;
+import introdb.heap.engine.StorageEngine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Byte store passing keys and values straight to the engine.
+ */
+class HeapByteStore implements ByteStore {
+
+	private final StorageEngine engine;
+
+	HeapByteStore(StorageEngine engine) {
+		this.engine = engine;
+	}
+
+	@Override
+	public void put(byte[] key, byte[] value) throws IOException {
+		engine.put(key, value);
+	}
+
+	@Override
+	public void put(ByteBuffer key, ByteBuffer value) throws IOException {
+		engine.put(bytes(key), bytes(value));
+	}
+
+	@Override
+	public byte[] get(byte[] key) throws IOException {
+		var record = engine.get(key);
+		return isNull(record) ? null : record.value();
+	}
+
+	@Override
+	public int get(byte[] key, ByteBuffer target) throws IOException {
+		return engine.get(key, target);
+	}
+
+	@Override
+	public int get(ByteBuffer key, ByteBuffer target) throws IOException {
+		return engine.get(bytes(key), target);
+	}
+
+	@Override
+	public InputStream getStream(byte[] key) throws IOException {
+		return engine.getStream(key);
+	}
+
+	@Override
+	public Iterator<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] to) {
+		return entries(engine.scan(from, to));
+	}
+
+	@Override
+	public Iterator<Map.Entry<byte[], byte[]>> prefix(byte[] prefix) {
+		return entries(engine.prefix(prefix));
+	}
+
+	@Override
+	public byte[] remove(byte[] key) throws IOException {
+		var record = engine.remove(key);
+		return isNull(record) ? null : record.value();
+	}
+
+	@Override
+	public void close() throws IOException {
+		engine.close();
+	}
+
+	private static Iterator<Map.Entry<byte[], byte[]>> entries(Iterator<Record> records) {
+		return new Iterator<>() {
+			@Override
+			public boolean hasNext() {
+				return records.hasNext();
+			}
+
+			@Override
+			public Map.Entry<byte[], byte[]> next() {
+				var record = records.next();
+				return Map.entry(record.key(), record.value());
+			}
+		};
+	}
+
+	/**
+	 * Always copies, engine keeps keys and values it is given, caller can reuse its buffer.
+	 */
+	private static byte[] bytes(ByteBuffer buffer) {
+		var bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+}
@@ -2,6 +2,7 @@ package introdb.heap;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.List;
 
 interface Store {
 
@@ -15,8 +16,65 @@ interface Store {
 	 * @throws ClassNotFoundException 
 	 * @throws IOException 
 	 * @throws IllegalArgumentException
-	 *             when entry exceeds page size
+	 *             when key of entry exceeds page size
 	 */
 	void put(Entry entry) throws IOException, ClassNotFoundException;
 
+	/**
+	 * Puts all entries at once, cheaper than putting them one by one.
+	 * 
+	 * @param entries
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             when any key exceeds page size, then no entry is put
+	 */
+	void putAll(List<Entry> entries) throws IOException;
+
+	/**
+	 * @return values in order of keys, null for missing keys
+	 */
+	List<Object> getAll(List<? extends Serializable> keys) throws IOException, ClassNotFoundException;
+
+	/**
+	 * @return removed values in order of keys, null for missing keys
+	 */
+	List<Object> removeAll(List<? extends Serializable> keys) throws IOException, ClassNotFoundException;
+
+	/**
+	 * Begins transaction, which reads the store as it was when it began and commits
+	 * its puts and removes at once.
+	 */
+	Transaction begin();
+
+	/**
+	 * Flushes index and releases underlying files, store can be reopened
+	 * on the same path afterwards.
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+
+	interface Transaction extends AutoCloseable {
+
+		Object get(Serializable key) throws IOException, ClassNotFoundException;
+
+		void put(Entry entry) throws IOException;
+
+		void remove(Serializable key) throws IOException;
+
+		/**
+		 * @throws introdb.heap.engine.TransactionConflictException
+		 *             when any changed key was changed by another writer since
+		 *             the transaction began, nothing is written then
+		 */
+		void commit() throws IOException;
+
+		void rollback();
+
+		/**
+		 * Rolls back transaction, which wasn't committed.
+		 */
+		@Override
+		void close();
+	}
 }
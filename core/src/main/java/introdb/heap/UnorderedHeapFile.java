@@ -1,14 +1,18 @@
 package introdb.heap;
 
-import introdb.heap.engine.Engine;
-import introdb.heap.lock.LockManager;
+import introdb.heap.codec.Codec;
+import introdb.heap.codec.Codecs;
+import introdb.heap.engine.Options;
+import introdb.heap.engine.Record;
+import introdb.heap.engine.StorageEngine;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
-import static introdb.heap.utils.SerializationUtils.deserialize;
-import static introdb.heap.utils.SerializationUtils.serialize;
 import static java.util.Objects.isNull;
 
 /**
@@ -17,27 +21,135 @@ import static java.util.Objects.isNull;
  */
 class UnorderedHeapFile implements Store {
 
-    private final Engine engine;
+    private final StorageEngine engine;
+	private final Codec<Object> keyCodec;
+	private final Codec<Object> valueCodec;
 
 	UnorderedHeapFile(Path path, int maxNrPages, int pageSize) throws IOException{
-		engine = Engine.of(new LockManager(), path, maxNrPages, pageSize);
+		this(path, maxNrPages, pageSize, Options.defaults());
+	}
+
+	/**
+	 * Keys are Java serialized, so keys of stores written before codecs were added still match.
+	 * Values use tagged codec, which reads Java serialized values as well.
+	 */
+	UnorderedHeapFile(Path path, int maxNrPages, int pageSize, Options options) throws IOException{
+		this(path, maxNrPages, pageSize, options, Codecs.serializable(), Codecs.tagged());
+	}
+
+	/**
+	 * @param keyCodec codec of keys, it has to accept all keys put into the store
+	 * @param valueCodec codec of values, it has to accept all values put into the store
+	 */
+	@SuppressWarnings("unchecked")
+	UnorderedHeapFile(Path path, int maxNrPages, int pageSize, Options options, Codec<?> keyCodec, Codec<?> valueCodec) throws IOException{
+		this.engine = StorageEngine.of(path, maxNrPages, pageSize, options);
+		this.keyCodec = (Codec<Object>) keyCodec;
+		this.valueCodec = (Codec<Object>) valueCodec;
     }
 
 	@Override
     public void put(Entry entry) throws IOException, ClassNotFoundException {
-		engine.put(serialize(entry.key()), serialize(entry.value()));
+		engine.put(keyCodec.encode(entry.key()), valueCodec.encode(entry.value()));
 	}
 	
 	@Override
     public Object get(Serializable key) throws IOException, ClassNotFoundException {
-		var record = engine.get(serialize(key));
-        return isNull(record) ? null : deserialize(record.value());
+		var record = engine.get(keyCodec.encode(key));
+        return isNull(record) ? null : valueCodec.decode(record.value());
 	}
 
 	@Override
 	public Object remove(Serializable key) throws IOException, ClassNotFoundException {
-		var record = engine.remove(serialize(key));
-		return isNull(record) ? null : deserialize(record.value());
+		var record = engine.remove(keyCodec.encode(key));
+		return isNull(record) ? null : valueCodec.decode(record.value());
+	}
+
+	@Override
+	public void putAll(List<Entry> entries) throws IOException {
+		var serialized = new ArrayList<Map.Entry<byte[], byte[]>>(entries.size());
+		for (var entry : entries) {
+			serialized.add(Map.entry(keyCodec.encode(entry.key()), valueCodec.encode(entry.value())));
+		}
+		engine.putAll(serialized);
+	}
+
+	@Override
+	public List<Object> getAll(List<? extends Serializable> keys) throws IOException, ClassNotFoundException {
+		return values(engine.getAll(encodeKeys(keys)));
+	}
+
+	@Override
+	public List<Object> removeAll(List<? extends Serializable> keys) throws IOException, ClassNotFoundException {
+		return values(engine.removeAll(encodeKeys(keys)));
+	}
+
+	@Override
+	public Transaction begin() {
+		return new HeapFileTransaction(engine.begin());
 	}
-}
 
+	@Override
+	public void close() throws IOException {
+		engine.close();
+	}
+
+	private List<byte[]> encodeKeys(List<? extends Serializable> keys) throws IOException {
+		var encoded = new ArrayList<byte[]>(keys.size());
+		for (var key : keys) {
+			encoded.add(keyCodec.encode(key));
+		}
+		return encoded;
+	}
+
+	private List<Object> values(List<Record> records) throws IOException, ClassNotFoundException {
+		var values = new ArrayList<>(records.size());
+		for (var record : records) {
+			values.add(isNull(record) ? null : valueCodec.decode(record.value()));
+		}
+		return values;
+	}
+
+	/**
+	 * Encodes keys and values for engine transaction.
+	 */
+	private class HeapFileTransaction implements Transaction {
+
+		private final introdb.heap.engine.Transaction transaction;
+
+		private HeapFileTransaction(introdb.heap.engine.Transaction transaction) {
+			this.transaction = transaction;
+		}
+
+		@Override
+		public Object get(Serializable key) throws IOException, ClassNotFoundException {
+			var record = transaction.get(keyCodec.encode(key));
+			return isNull(record) ? null : valueCodec.decode(record.value());
+		}
+
+		@Override
+		public void put(Entry entry) throws IOException {
+			transaction.put(keyCodec.encode(entry.key()), valueCodec.encode(entry.value()));
+		}
+
+		@Override
+		public void remove(Serializable key) throws IOException {
+			transaction.remove(keyCodec.encode(key));
+		}
+
+		@Override
+		public void commit() throws IOException {
+			transaction.commit();
+		}
+
+		@Override
+		public void rollback() {
+			transaction.rollback();
+		}
+
+		@Override
+		public void close() {
+			transaction.close();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package introdb.heap.codec;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Converts keys and values to bytes stored in heap file and back.
+ *
+ * @param <T> type of encoded objects
+ */
+public interface Codec<T> {
+
+    byte[] encode(T value) throws IOException;
+
+    T decode(byte[] data) throws IOException, ClassNotFoundException;
+
+    /**
+     * @return codec of other type, which is converted to this codec type before encoding
+     */
+    default <U> Codec<U> map(Function<U, T> to, Function<T, U> from) {
+        var codec = this;
+        return new Codec<>() {
+            @Override
+            public byte[] encode(U value) throws IOException {
+                return codec.encode(to.apply(value));
+            }
+
+            @Override
+            public U decode(byte[] data) throws IOException, ClassNotFoundException {
+                return from.apply(codec.decode(data));
+            }
+        };
+    }
+}
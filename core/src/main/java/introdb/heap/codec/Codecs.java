@@ -0,0 +1,132 @@
+package introdb.heap.codec;
+
+import introdb.heap.utils.SerializationUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Built-in codecs.
+ */
+public final class Codecs {
+
+    private Codecs() {
+    }
+
+    /**
+     * Default codec of values, compact encoding of byte arrays, strings and boxed primitives,
+     * other objects fall back to Java serialization. Reads Java serialized data as well.
+     */
+    public static Codec<Object> tagged() {
+        return TaggedCodec.INSTANCE;
+    }
+
+    /**
+     * Java serialization of any object, the most expensive and the largest encoding.
+     * Default codec of keys, which have to stay byte for byte the same as in existing stores.
+     */
+    public static Codec<Object> serializable() {
+        return new Codec<>() {
+            @Override
+            public byte[] encode(Object value) throws IOException {
+                return SerializationUtils.serialize(value);
+            }
+
+            @Override
+            public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+                return SerializationUtils.deserialize(data);
+            }
+        };
+    }
+
+    /**
+     * Byte arrays as they are, encoded copy is kept by the store, so caller can reuse the array.
+     */
+    public static Codec<byte[]> bytes() {
+        return new Codec<>() {
+            @Override
+            public byte[] encode(byte[] value) {
+                return value.clone();
+            }
+
+            @Override
+            public byte[] decode(byte[] data) {
+                return data;
+            }
+        };
+    }
+
+    /**
+     * UTF-8 encoded strings.
+     */
+    public static Codec<String> strings() {
+        return new Codec<>() {
+            @Override
+            public byte[] encode(String value) {
+                return value.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String decode(byte[] data) {
+                return new String(data, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /**
+     * Big endian ints, so byte order of encoded non negative ints follows their order.
+     */
+    public static Codec<Integer> ints() {
+        return new Codec<>() {
+            @Override
+            public byte[] encode(Integer value) {
+                return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+            }
+
+            @Override
+            public Integer decode(byte[] data) {
+                return ByteBuffer.wrap(data).getInt();
+            }
+        };
+    }
+
+    /**
+     * Big endian longs, so byte order of encoded non negative longs follows their order.
+     */
+    public static Codec<Long> longs() {
+        return new Codec<>() {
+            @Override
+            public byte[] encode(Long value) {
+                return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+            }
+
+            @Override
+            public Long decode(byte[] data) {
+                return ByteBuffer.wrap(data).getLong();
+            }
+        };
+    }
+
+    public static Codec<Double> doubles() {
+        return new Codec<>() {
+            @Override
+            public byte[] encode(Double value) {
+                return ByteBuffer.allocate(Double.BYTES).putDouble(value).array();
+            }
+
+            @Override
+            public Double decode(byte[] data) {
+                return ByteBuffer.wrap(data).getDouble();
+            }
+        };
+    }
+
+    /**
+     * Schema based codec of fixed number of fields, every field is encoded by its own codec.
+     * Only field values are stored, without names or types, use {@link Codec#map} to encode objects.
+     */
+    public static Codec<Object[]> tuple(Codec<?>... fields) {
+        return new TupleCodec(fields);
+    }
+}
@@ -0,0 +1,106 @@
+package introdb.heap.codec;
+
+import introdb.heap.utils.SerializationUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes value as [tag (byte)][payload], payload of primitives is fixed size big endian value.
+ *
+ * Tags don't clash with the first byte of Java serialization stream (0xAC), so data written
+ * by Java serialization is still decoded.
+ */
+class TaggedCodec implements Codec<Object> {
+
+    static final TaggedCodec INSTANCE = new TaggedCodec();
+
+    private static final byte NULL = 0;
+    private static final byte BYTES = 1;
+    private static final byte STRING = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte SHORT = 5;
+    private static final byte BYTE = 6;
+    private static final byte BOOLEAN = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte FLOAT = 9;
+    private static final byte CHAR = 10;
+    private static final byte SERIALIZED = 15;
+
+    // first byte of Java serialization stream magic
+    private static final byte STREAM_MAGIC = (byte) 0xAC;
+
+    private TaggedCodec() {
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        if (value == null) {
+            return new byte[] {NULL};
+        } else if (value instanceof byte[]) {
+            var bytes = (byte[]) value;
+            return ByteBuffer.allocate(1 + bytes.length).put(BYTES).put(bytes).array();
+        } else if (value instanceof String) {
+            var bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            return ByteBuffer.allocate(1 + bytes.length).put(STRING).put(bytes).array();
+        } else if (value instanceof Integer) {
+            return ByteBuffer.allocate(1 + Integer.BYTES).put(INT).putInt((Integer) value).array();
+        } else if (value instanceof Long) {
+            return ByteBuffer.allocate(1 + Long.BYTES).put(LONG).putLong((Long) value).array();
+        } else if (value instanceof Short) {
+            return ByteBuffer.allocate(1 + Short.BYTES).put(SHORT).putShort((Short) value).array();
+        } else if (value instanceof Byte) {
+            return new byte[] {BYTE, (Byte) value};
+        } else if (value instanceof Boolean) {
+            return new byte[] {BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+        } else if (value instanceof Double) {
+            return ByteBuffer.allocate(1 + Double.BYTES).put(DOUBLE).putDouble((Double) value).array();
+        } else if (value instanceof Float) {
+            return ByteBuffer.allocate(1 + Float.BYTES).put(FLOAT).putFloat((Float) value).array();
+        } else if (value instanceof Character) {
+            return ByteBuffer.allocate(1 + Character.BYTES).put(CHAR).putChar((Character) value).array();
+        }
+        var bytes = SerializationUtils.serialize(value);
+        return ByteBuffer.allocate(1 + bytes.length).put(SERIALIZED).put(bytes).array();
+    }
+
+    @Override
+    public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+        if (data[0] == STREAM_MAGIC) {
+            return SerializationUtils.deserialize(data);
+        }
+
+        var payload = ByteBuffer.wrap(data, 1, data.length - 1);
+        switch (data[0]) {
+            case NULL:
+                return null;
+            case BYTES:
+                return Arrays.copyOfRange(data, 1, data.length);
+            case STRING:
+                return new String(data, 1, data.length - 1, StandardCharsets.UTF_8);
+            case INT:
+                return payload.getInt();
+            case LONG:
+                return payload.getLong();
+            case SHORT:
+                return payload.getShort();
+            case BYTE:
+                return payload.get();
+            case BOOLEAN:
+                return payload.get() != 0;
+            case DOUBLE:
+                return payload.getDouble();
+            case FLOAT:
+                return payload.getFloat();
+            case CHAR:
+                return payload.getChar();
+            case SERIALIZED:
+                return SerializationUtils.deserialize(Arrays.copyOfRange(data, 1, data.length));
+            default:
+                throw new IOException("Unknown type tag " + data[0]);
+        }
+    }
+}
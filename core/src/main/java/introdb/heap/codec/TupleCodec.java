@@ -0,0 +1,64 @@
+package introdb.heap.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes fields one after another as [field size (varint)][field], field codecs are the schema.
+ */
+class TupleCodec implements Codec<Object[]> {
+
+    private final Codec<Object>[] fields;
+
+    @SuppressWarnings("unchecked")
+    TupleCodec(Codec<?>... fields) {
+        this.fields = (Codec<Object>[]) fields.clone();
+    }
+
+    @Override
+    public byte[] encode(Object[] value) throws IOException {
+        if (value.length != fields.length) {
+            throw new IllegalArgumentException(
+                    "Tuple has " + value.length + " fields, schema has " + fields.length + " fields.");
+        }
+        var out = new ByteArrayOutputStream();
+        for (int i = 0; i < fields.length; i++) {
+            var field = fields[i].encode(value[i]);
+            writeVarInt(out, field.length);
+            out.write(field);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object[] decode(byte[] data) throws IOException, ClassNotFoundException {
+        var in = ByteBuffer.wrap(data);
+        var value = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            var field = new byte[readVarInt(in)];
+            in.get(field);
+            value[i] = fields[i].decode(field);
+        }
+        return value;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            var b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
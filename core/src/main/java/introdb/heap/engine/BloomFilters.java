@@ -0,0 +1,277 @@
+package introdb.heap.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Bloom filter of keys for every segment of consecutive pages, tells that page can't hold a key
+ * without reading the page. It pays off with index keeping only hashes of keys, which can't tell
+ * that a key is missing.
+ *
+ * Removed keys stay in the filter, filter of segment is rebuilt from its pages when more keys
+ * were added than it was sized for, which also drops removed keys. Rebuilt filter is sized
+ * by keys found in pages, so keys put again don't grow it. Pages are read without holding
+ * the filters lock, keys added meanwhile are added to the rebuilt filter too. Filters are persisted
+ * on checkpoint next to the heap file, stamped with the checkpoint number. When the file is missing,
+ * or its stamp doesn't match the last checkpoint of the store, filters are rebuilt from all pages.
+ *
+ * Filters file format: [bits per key (int)][checkpoint (long)][nr of segments (int)] then for every segment
+ * [capacity (int)][nr of keys (int)][nr of longs (int)][longs].
+ */
+class BloomFilters {
+
+    static final String SUFFIX = ".bloom";
+    static final int SEGMENT_PAGES = 64;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Path path;
+    private final int bitsPerKey;
+    private final int nrOfHashes;
+    private final KeyScan scan;
+
+    // filters by segment, array is replaced by larger copy under lock
+    private volatile AtomicReferenceArray<Filter> filters = new AtomicReferenceArray<>(0);
+
+    // hashes of keys added to segments while they are rebuilt, guarded by this
+    private final Map<Integer, List<Long>> rebuilding = new HashMap<>();
+
+    /**
+     * Reads keys of pages in range, used to rebuild filters.
+     */
+    @FunctionalInterface
+    interface KeyScan {
+        void forEachKey(int fromPageNo, int toPageNo, Consumer<byte[]> consumer);
+    }
+
+    private BloomFilters(Path path, int bitsPerKey, KeyScan scan) {
+        this.path = path;
+        this.bitsPerKey = bitsPerKey;
+        this.nrOfHashes = Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * Math.log(2))));
+        this.scan = scan;
+    }
+
+    /**
+     * @return filters, or null when they are disabled, then filters file is deleted, so filters
+     *         which missed keys put meanwhile aren't loaded later
+     */
+    static BloomFilters of(Path heapFilePath, Options options, KeyScan scan) throws IOException {
+        var path = heapFilePath.resolveSibling(heapFilePath.getFileName() + SUFFIX);
+        if (options.bloomFilterBitsPerKey() <= 0) {
+            Files.deleteIfExists(path);
+            return null;
+        }
+        return new BloomFilters(path, options.bloomFilterBitsPerKey(), scan);
+    }
+
+    /**
+     * Loads filters, or rebuilds them from pages when the file is missing, was written
+     * with other number of bits per key or at other checkpoint than the last one.
+     */
+    void load(int nrOfPages, long checkpoint) throws IOException {
+        if (Files.exists(path)) {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+                if (in.readInt() == bitsPerKey && in.readLong() == checkpoint) {
+                    var loaded = new AtomicReferenceArray<Filter>(in.readInt());
+                    for (int segment = 0; segment < loaded.length(); segment++) {
+                        var capacity = in.readInt();
+                        var count = in.readInt();
+                        var bits = new long[in.readInt()];
+                        for (int i = 0; i < bits.length; i++) {
+                            bits[i] = in.readLong();
+                        }
+                        loaded.set(segment, new Filter(capacity, count, bits));
+                    }
+                    filters = loaded;
+                    return;
+                }
+            }
+        }
+        var rebuilt = new AtomicReferenceArray<Filter>((nrOfPages + SEGMENT_PAGES - 1) / SEGMENT_PAGES);
+        for (int segment = 0; segment < rebuilt.length(); segment++) {
+            rebuilt.set(segment, build(segment, INITIAL_CAPACITY));
+        }
+        filters = rebuilt;
+    }
+
+    /**
+     * Adds key put into page, has to be called before key can be found in index.
+     */
+    void add(byte[] key, int pageNo) {
+        var segment = pageNo / SEGMENT_PAGES;
+        var hash = hash(key);
+        synchronized (this) {
+            var filter = filter(segment);
+            filter.add(hash, nrOfHashes);
+            var added = rebuilding.get(segment);
+            if (added != null) {
+                added.add(hash);
+                return;
+            }
+            if (filter.count <= filter.capacity) {
+                return;
+            }
+            // count grows with puts of the same keys too, new filter is sized by keys in pages
+            rebuilding.put(segment, new ArrayList<>());
+        }
+        rebuild(segment);
+    }
+
+    /**
+     * @return false when page certainly doesn't hold the key
+     */
+    boolean mightContain(byte[] key, int pageNo) {
+        var segment = pageNo / SEGMENT_PAGES;
+        var filters = this.filters;
+        if (segment >= filters.length()) {
+            return true;
+        }
+        var filter = filters.get(segment);
+        return filter == null || filter.mightContain(hash(key), nrOfHashes);
+    }
+
+    synchronized void save(long checkpoint) throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var file = new FileOutputStream(tmp.toFile());
+             var out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE))) {
+            out.writeInt(bitsPerKey);
+            out.writeLong(checkpoint);
+            out.writeInt(filters.length());
+            for (int segment = 0; segment < filters.length(); segment++) {
+                var filter = filters.get(segment);
+                if (filter == null) {
+                    filter = new Filter(INITIAL_CAPACITY, bitsPerKey);
+                }
+                out.writeInt(filter.capacity);
+                out.writeInt(filter.count);
+                out.writeInt(filter.bits.length);
+                for (var bits : filter.bits) {
+                    out.writeLong(bits);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private Filter filter(int segment) {
+        var filters = this.filters;
+        if (segment >= filters.length()) {
+            var grown = new AtomicReferenceArray<Filter>(Math.max(segment + 1, filters.length() * 2));
+            for (int i = 0; i < filters.length(); i++) {
+                grown.set(i, filters.get(i));
+            }
+            this.filters = filters = grown;
+        }
+        var filter = filters.get(segment);
+        if (filter == null) {
+            filter = new Filter(INITIAL_CAPACITY, bitsPerKey);
+            filters.set(segment, filter);
+        }
+        return filter;
+    }
+
+    /**
+     * Replaces filter of segment with filter of keys found in its pages and keys added
+     * while pages were read. Old filter is used until then, so keys are never missing.
+     */
+    private void rebuild(int segment) {
+        var filter = build(segment, INITIAL_CAPACITY);
+        synchronized (this) {
+            for (long hash : rebuilding.remove(segment)) {
+                filter.add(hash, nrOfHashes);
+            }
+            filter(segment);
+            filters.set(segment, filter);
+        }
+    }
+
+    /**
+     * @return filter of keys found in pages of segment
+     */
+    private Filter build(int segment, int capacity) {
+        var hashes = LongStream.builder();
+        scan.forEachKey(segment * SEGMENT_PAGES, (segment + 1) * SEGMENT_PAGES,
+                key -> hashes.add(hash(key)));
+        var keys = hashes.build().toArray();
+
+        var filter = new Filter(Math.max(capacity, keys.length * 2), bitsPerKey);
+        for (var hash : keys) {
+            filter.add(hash, nrOfHashes);
+        }
+        return filter;
+    }
+
+    /**
+     * Hash independent of the one used by off heap index, so keys colliding there are told apart.
+     */
+    private static long hash(byte[] key) {
+        long hash = 0x9e3779b97f4a7c15L;
+        for (byte b : key) {
+            hash = (hash + (b & 0xff)) * 0xbf58476d1ce4e5b9L;
+        }
+        hash ^= hash >>> 31;
+        hash *= 0x94d049bb133111ebL;
+        hash ^= hash >>> 29;
+        return hash;
+    }
+
+    private static class Filter {
+
+        private final int capacity;
+        private int count;
+        private final long[] bits;
+
+        private Filter(int capacity, int bitsPerKey) {
+            this(capacity, 0, new long[(int) Math.max(1, ((long) capacity * bitsPerKey + 63) / 64)]);
+        }
+
+        private Filter(int capacity, int count, long[] bits) {
+            this.capacity = capacity;
+            this.count = count;
+            this.bits = bits;
+        }
+
+        private void add(long hash, int nrOfHashes) {
+            var nrOfBits = bits.length * 64L;
+            var h1 = (int) hash;
+            var h2 = (int) (hash >>> 32);
+            for (int i = 0; i < nrOfHashes; i++) {
+                var bit = Math.floorMod(h1 + i * (long) h2, nrOfBits);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+
+        private boolean mightContain(long hash, int nrOfHashes) {
+            var nrOfBits = bits.length * 64L;
+            var h1 = (int) hash;
+            var h2 = (int) (hash >>> 32);
+            for (int i = 0; i < nrOfHashes; i++) {
+                var bit = Math.floorMod(h1 + i * (long) h2, nrOfBits);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
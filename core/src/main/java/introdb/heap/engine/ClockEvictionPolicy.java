@@ -0,0 +1,102 @@
+package introdb.heap.engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK (second chance) eviction, every page has a reference bit set on access,
+ * hand sweeps slots clearing reference bits and evicts first page without it.
+ *
+ * Access only sets reference bit of the page slot, without locking, so readers of cached
+ * pages don't contend. Bit set while slot is reused or bits are copied may get lost,
+ * which only costs the page its second chance.
+ */
+class ClockEvictionPolicy implements EvictionPolicy {
+
+    private static final int EMPTY = -1;
+
+    private static final int INITIAL_SLOTS = 64;
+
+    // guarded by this
+    private final List<Integer> slots = new ArrayList<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand;
+
+    private final ConcurrentMap<Integer, Integer> slotOfPage = new ConcurrentHashMap<>();
+
+    // reference bits by slot, replaced by larger copy under lock
+    private volatile AtomicIntegerArray referenced = new AtomicIntegerArray(INITIAL_SLOTS);
+
+    @Override
+    public synchronized void onInsert(int pageNo) {
+        var slot = slotOfPage.get(pageNo);
+        if (slot == null) {
+            slot = freeSlots.isEmpty() ? slots.size() : freeSlots.pop();
+            if (slot == slots.size()) {
+                slots.add(pageNo);
+                grow(slots.size());
+            } else {
+                slots.set(slot, pageNo);
+            }
+            slotOfPage.put(pageNo, slot);
+        }
+        referenced.set(slot, 1);
+    }
+
+    @Override
+    public void onAccess(int pageNo) {
+        var slot = slotOfPage.get(pageNo);
+        if (slot != null) {
+            var referenced = this.referenced;
+            if (slot < referenced.length()) {
+                referenced.lazySet(slot, 1);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(int pageNo) {
+        var slot = slotOfPage.remove(pageNo);
+        if (slot != null) {
+            slots.set(slot, EMPTY);
+            referenced.set(slot, 0);
+            freeSlots.push(slot);
+        }
+    }
+
+    @Override
+    public synchronized int victim(IntPredicate evictable) {
+        // two full sweeps, first one may only clear reference bits
+        for (int i = 0; i < 2 * slots.size(); i++) {
+            if (hand >= slots.size()) {
+                hand = 0;
+            }
+            int slot = hand++;
+            int pageNo = slots.get(slot);
+            if (pageNo == EMPTY) {
+                continue;
+            }
+            if (referenced.getAndSet(slot, 0) == 0 && evictable.test(pageNo)) {
+                return pageNo;
+            }
+        }
+        return -1;
+    }
+
+    private void grow(int nrOfSlots) {
+        var referenced = this.referenced;
+        if (nrOfSlots > referenced.length()) {
+            var grown = new AtomicIntegerArray(referenced.length() * 2);
+            for (int slot = 0; slot < referenced.length(); slot++) {
+                grown.set(slot, referenced.get(slot));
+            }
+            this.referenced = grown;
+        }
+    }
+}
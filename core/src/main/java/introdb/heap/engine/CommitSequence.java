@@ -0,0 +1,128 @@
+package introdb.heap.engine;
+
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Numbers committed changes and keeps track of open snapshots. It is shared by version stores
+ * of all shards, so snapshot of sharded engine sees all shards at the same point.
+ *
+ * Opening snapshot doesn't hold off writers. Changes started while no snapshot is open keep
+ * no versions, so snapshot waits only for these to finish. Every later change keeps versions
+ * and snapshot sees it, when it was committed before the snapshot took its sequence.
+ */
+class CommitSequence {
+
+    // sequence of changes which are not committed yet
+    static final long PENDING = Long.MAX_VALUE;
+
+    // last committed change, guarded by this
+    private long sequence;
+
+    // open snapshots by their sequence, with number of snapshots of the same sequence
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    private volatile int nrOfSnapshots;
+
+    // changes in progress, which keep no versions
+    private final AtomicInteger untracked = new AtomicInteger();
+    private final Change untrackedChange = new Change(this, false);
+
+    private CommitSequence() {
+    }
+
+    static CommitSequence of() {
+        return new CommitSequence();
+    }
+
+    /**
+     * Opens snapshot, once changes which keep no versions are done.
+     *
+     * @return sequence of the snapshot
+     */
+    synchronized long open() {
+        // changes started from now on see the snapshot and keep versions
+        nrOfSnapshots++;
+        var interrupted = false;
+        while (untracked.get() > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        snapshots.merge(sequence, 1, Integer::sum);
+        return sequence;
+    }
+
+    /**
+     * @return sequence of the oldest snapshot still open, versions superseded before it aren't needed
+     */
+    synchronized long close(long snapshot) {
+        if (snapshots.merge(snapshot, -1, Integer::sum) == 0) {
+            snapshots.remove(snapshot);
+        }
+        nrOfSnapshots--;
+        return snapshots.isEmpty() ? sequence : snapshots.firstKey();
+    }
+
+    /**
+     * Starts change, which has to keep versions of its keys when it is tracked.
+     */
+    Change begin() {
+        untracked.incrementAndGet();
+        if (nrOfSnapshots == 0) {
+            return untrackedChange;
+        }
+        finishUntracked();
+        return new Change(this, true);
+    }
+
+    private void finishUntracked() {
+        if (untracked.decrementAndGet() == 0 && nrOfSnapshots > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Change in progress, commit assigns it next sequence at once for all its versions.
+     */
+    static class Change {
+
+        private final CommitSequence commits;
+        private final boolean tracked;
+        private volatile long sequence = PENDING;
+
+        private Change(CommitSequence commits, boolean tracked) {
+            this.commits = commits;
+            this.tracked = tracked;
+        }
+
+        boolean isTracked() {
+            return tracked;
+        }
+
+        long sequence() {
+            return sequence;
+        }
+
+        /**
+         * Called also when change failed, snapshots then keep reading kept versions,
+         * which are still valid for them.
+         */
+        void commit() {
+            if (!tracked) {
+                commits.finishUntracked();
+                return;
+            }
+            // snapshot takes its sequence under the same lock, so it sees all versions of the change or none
+            synchronized (commits) {
+                sequence = ++commits.sequence;
+            }
+        }
+    }
+}
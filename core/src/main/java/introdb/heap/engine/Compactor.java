@@ -0,0 +1,114 @@
+package introdb.heap.engine;
+
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Background vacuum of the heap file.
+ *
+ * Compaction walks pages from the end of the file and moves live records of sparse pages
+ * to free space in preceding pages, then empty pages are truncated from the end of the file.
+ * Background compaction is throttled to given number of rewritten pages per second,
+ * so it doesn't compete with foreground reads and writes for disk bandwidth.
+ */
+class Compactor {
+
+    private static final Logger LOG = Logger.getLogger(Compactor.class.getName());
+
+    private final Engine engine;
+    private final Path path;
+    private final long interval;
+    private final long nanosPerPage;
+
+    private ScheduledExecutorService scheduler;
+    private volatile boolean stopped;
+
+    private Compactor(Engine engine, Path path, long interval, int pagesPerSecond) {
+        this.engine = engine;
+        this.path = path;
+        this.interval = interval;
+        this.nanosPerPage = TimeUnit.SECONDS.toNanos(1) / pagesPerSecond;
+    }
+
+    static Compactor of(Engine engine, Path heapFilePath, Options options) {
+        return new Compactor(engine, heapFilePath, options.compactionInterval(), options.compactionRate());
+    }
+
+    void start() {
+        if (interval == 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "compactor-" + path.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::compactInBackground, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        stopped = true;
+        if (scheduler != null) {
+            // don't interrupt running compaction, interrupted log force closes the log file
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs one compaction pass.
+     *
+     * @param throttled when true, pass is slowed down to configured compaction rate
+     * @return number of pages truncated from the end of the heap file
+     */
+    int compact(boolean throttled) {
+        var next = System.nanoTime();
+        int moved = 0;
+        for (int pageNo = engine.lastPageNumber(); pageNo >= 0 && !stopped; pageNo--) {
+            if (!engine.isSparse(pageNo)) {
+                continue;
+            }
+            if (throttled) {
+                next = throttle(next);
+            }
+            moved += engine.relocate(pageNo);
+        }
+        int truncated = engine.truncate();
+        if (moved > 0 || truncated > 0) {
+            LOG.info(format("moved %d records, truncated %d pages", moved, truncated));
+        }
+        return truncated;
+    }
+
+    private void compactInBackground() {
+        try {
+            compact(true);
+        } catch (RuntimeException e) {
+            // keep the schedule, next run may succeed
+            LOG.log(Level.WARNING, "compaction failed", e);
+        }
+    }
+
+    private long throttle(long next) {
+        var delay = next - System.nanoTime();
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
+        }
+        return Math.max(next, System.nanoTime() - nanosPerPage) + nanosPerPage;
+    }
+}
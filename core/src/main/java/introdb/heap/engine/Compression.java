@@ -0,0 +1,175 @@
+package introdb.heap.engine;
+
+import introdb.heap.utils.ByteArrayWrapper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of record values, set with {@link Options#withCompression(Compression)}.
+ *
+ * Values are deflated with the fastest level, optionally with a preset dictionary trained
+ * on sample values, which pays off for small values sharing the same structure (e.g. JSON
+ * documents with the same field names). Value is stored compressed only when it gets smaller,
+ * compressed records are flagged in record header, so stores can be reopened
+ * with compression turned on or off. Values compressed with dictionary can be read only
+ * with the same dictionary.
+ *
+ * Compressed value is [original size (int)][deflate stream].
+ */
+public class Compression {
+
+    // deflate window, longer dictionary isn't used
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    // smaller values don't gain enough to pay for size prefix and deflate header
+    private static final int MIN_VALUE_SIZE = 32;
+
+    // length of substrings counted when training dictionary
+    private static final int GRAM_SIZE = 8;
+
+    private static final Compression NONE = new Compression(false, null);
+
+    private final boolean enabled;
+    private final byte[] dictionary;
+
+    // deflater and inflater keep native buffers, so every thread reuses one of each for all
+    // compressions, dictionary is set on every use
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private Compression(boolean enabled, byte[] dictionary) {
+        this.enabled = enabled;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Values are stored as they are, values compressed earlier are still decompressed.
+     */
+    public static Compression none() {
+        return NONE;
+    }
+
+    public static Compression fast() {
+        return new Compression(true, null);
+    }
+
+    /**
+     * @param dictionary preset dictionary, e.g. trained with {@link #trainDictionary(List, int)}
+     */
+    public static Compression dictionary(byte[] dictionary) {
+        if (dictionary.length == 0 || dictionary.length > MAX_DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Dictionary size has to be between 1 and " + MAX_DICTIONARY_SIZE + " bytes.");
+        }
+        return new Compression(true, dictionary.clone());
+    }
+
+    /**
+     * Builds dictionary from substrings repeated across sample values, most frequent substrings
+     * are put at the end of dictionary, where deflate references them with shortest distances.
+     */
+    public static byte[] trainDictionary(List<byte[]> samples, int maxSize) {
+        if (maxSize < 1 || maxSize > MAX_DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Dictionary size has to be between 1 and " + MAX_DICTIONARY_SIZE + " bytes.");
+        }
+
+        // number of samples every substring occurs in
+        var occurrences = new HashMap<ByteArrayWrapper, Integer>();
+        var grams = new HashMap<ByteArrayWrapper, byte[]>();
+        for (var sample : samples) {
+            var seen = new HashSet<ByteArrayWrapper>();
+            for (int i = 0; i + GRAM_SIZE <= sample.length; i++) {
+                var gram = new byte[GRAM_SIZE];
+                System.arraycopy(sample, i, gram, 0, GRAM_SIZE);
+                var wrapper = ByteArrayWrapper.of(gram);
+                if (seen.add(wrapper)) {
+                    occurrences.merge(wrapper, 1, Integer::sum);
+                    grams.putIfAbsent(wrapper, gram);
+                }
+            }
+        }
+
+        var frequent = new ArrayList<Map.Entry<ByteArrayWrapper, Integer>>();
+        for (var entry : occurrences.entrySet()) {
+            if (entry.getValue() > 1) {
+                frequent.add(entry);
+            }
+        }
+        frequent.sort(Map.Entry.<ByteArrayWrapper, Integer>comparingByValue().reversed());
+
+        var nrOfGrams = Math.min(frequent.size(), maxSize / GRAM_SIZE);
+        var dictionary = ByteBuffer.allocate(nrOfGrams * GRAM_SIZE);
+        for (int i = nrOfGrams - 1; i >= 0; i--) {
+            dictionary.put(grams.get(frequent.get(i).getKey()));
+        }
+        return dictionary.array();
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return compressed value, or null when value is not worth compressing
+     */
+    byte[] compress(byte[] value) {
+        if (!enabled || value.length < MIN_VALUE_SIZE) {
+            return null;
+        }
+
+        var deflater = DEFLATER.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(value);
+        deflater.finish();
+
+        // compressed value longer than original is thrown away
+        var output = new byte[value.length];
+        ByteBuffer.wrap(output).putInt(value.length);
+        var length = Integer.BYTES;
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        var compressed = new byte[length];
+        System.arraycopy(output, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    byte[] decompress(byte[] compressed) {
+        var value = new byte[ByteBuffer.wrap(compressed).getInt()];
+
+        var inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed, Integer.BYTES, compressed.length - Integer.BYTES);
+        try {
+            var length = 0;
+            while (!inflater.finished()) {
+                var inflated = inflater.inflate(value, length, value.length - length);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    if (dictionary == null) {
+                        throw new IllegalStateException("Value was compressed with dictionary, which isn't set.");
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (inflated == 0 && (inflater.needsInput() || length == value.length)) {
+                    throw new IllegalStateException("Compressed value is corrupted.");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed value is corrupted.", e);
+        }
+        return value;
+    }
+}
@@ -1,141 +1,1435 @@
 package introdb.heap.engine;
 
+import introdb.heap.engine.WriteAheadLog.Op;
+import introdb.heap.lock.KeyLocks;
 import introdb.heap.lock.LockManager;
-import introdb.heap.lock.LockSupport;
 import introdb.heap.utils.ByteArrayWrapper;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static java.util.stream.Collectors.toList;
 
 /**
  * InnoDB engine implementation based on FileChannel
  *
- *  Engine is using buffers for last page and currently read page.
+ *  Engine is using buffers for last page and recently used pages (page cache),
+ *  modified pages are written back to the heap file when evicted from cache or on close.
+ *  Store written in other page format is refused when opened.
+ *  Index (key -> page number) is persisted next to the heap file, so it survives restarts,
+ *  it keeps keys on heap or only their hashes off heap, then candidate pages are checked for the key.
+ *  Optional Bloom filters of page segments tell which pages can't hold the key, before they are read.
+ *  When index file is missing, it is rebuilt by parallel scan of all heap pages.
+ *  New records go to pages with enough free space (free space map) and only when there is
+ *  no such page, they are appended to tail page of the writer thread, every tail page
+ *  is shared by a subset of threads and takes next page number when it is full.
+ *  Every put and remove is first written to write ahead log, which is replayed at startup,
+ *  and discarded by checkpoint once all changes are in heap and index files. Writers hold
+ *  locks of their keys from logging to page changes, so changes of a key reach the log and
+ *  pages in the same order and a key never has two records.
+ *  Records of sparse pages are moved to holes in preceding pages by background compactor,
+ *  which truncates emptied pages from the end of the heap file.
+ *  Values can be compressed in pages, write ahead log keeps them uncompressed.
+ *  Values of records which don't fit into a page are stored in chains of overflow pages,
+ *  chains left without pointer by crash are freed after log replay.
+ *  Optional ordered index lets key ranges be scanned in batches of records read page by page.
+ *  Snapshots read the store as it was when they were opened, previous values of keys changed
+ *  meanwhile are kept in version store, so neither snapshot readers nor writers wait for each other.
+ *  Transactions read through snapshot and write all their changes as one log record at commit,
+ *  which fails when keys were changed by another writer since the transaction began.
  *
  * @author snemo
  */
-public class Engine {
+public class Engine implements StorageEngine {
 
     private final IOController ioController;
     private final LockManager lockManager;
 
+    // format version of the store and number of the last checkpoint, persisted next to the heap file
+    private final StoreMetadata metadata;
+
     // Index as a mapping between key and page number
-    private final ConcurrentMap<ByteArrayWrapper, Integer> index = new ConcurrentHashMap<>();
+    private final Index index;
+
+    // recently used pages, last page is always pinned here
+    private final PageCache pageCache;
+
+    // keys of page segments, null when disabled
+    private final BloomFilters bloomFilters;
+
+    // free space in pages, so new records fill holes left by removed ones
+    private final FreeSpaceMap freeSpaceMap;
+
+    // redo log, changes are logged before pages are modified
+    private final WriteAheadLog log;
+    private final long maxLogSize;
+
+    // puts and removes share read lock, checkpoint waits for them with write lock
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    // numbers changes seen by snapshots, shared by shards
+    private final CommitSequence commits;
+
+    // previous values of keys changed while snapshots are open
+    private final VersionStore versions = VersionStore.of();
+
+    // number of keys read at once by scans
+    private static final int SCAN_BATCH_SIZE = 256;
+
+    // moves records out of sparse pages and truncates the heap file
+    private final Compactor compactor;
 
-    // last page buffer
-    private volatile AtomicReference<Page> lastPage;
+    // compression of new values, compressed values are decompressed before they leave engine
+    private final Compression compression;
 
-    private Engine(IOController ioController, LockManager lockManager) throws IOException {
+    // records which don't fit into empty page keep only pointer to value in overflow pages
+    private final int overflowThreshold;
+
+    // pages new records are appended to, writer threads are spread over them,
+    // tail pages stay pinned in cache until they are full
+    private final AtomicReferenceArray<Page> tailPages;
+
+    // number of pages claimed so far, new tail page gets next number
+    private final AtomicInteger nrOfPages = new AtomicInteger();
+
+    private Engine(IOController ioController, LockManager lockManager, CommitSequence commits, Options options) throws IOException {
         this.ioController = ioController;
         this.lockManager = lockManager;
+        this.commits = commits;
+        this.metadata = StoreMetadata.of(ioController.config().path());
+        this.index = Index.of(ioController.config().path(), options);
+        this.pageCache = PageCache.of(ioController, options);
+        this.freeSpaceMap = FreeSpaceMap.of(ioController.config().path(), ioController.config().pageSize());
+        this.bloomFilters = BloomFilters.of(ioController.config().path(), options, this::forEachKey);
+        this.log = WriteAheadLog.of(ioController.config().path(), options);
+        this.maxLogSize = options.maxLogSize();
+        this.tailPages = new AtomicReferenceArray<>(options.tailPages());
+        this.compression = options.compression();
+        this.overflowThreshold = Page.maxRecordSize(ioController.config().pageSize());
+        this.compactor = Compactor.of(this, ioController.config().path(), options);
         init();
+        compactor.start();
     }
 
     public static Engine of(LockManager lockManager, Path path, int maxNrPages, int pageSize) throws IOException {
-        return new Engine(IOController.of(path, maxNrPages, pageSize), lockManager);
+        return of(lockManager, path, maxNrPages, pageSize, Options.defaults());
+    }
+
+    public static Engine of(LockManager lockManager, Path path, int maxNrPages, int pageSize, Options options) throws IOException {
+        return of(lockManager, path, maxNrPages, pageSize, options, CommitSequence.of());
+    }
+
+    /**
+     * Creates shard, which numbers its changes by sequence shared with other shards.
+     */
+    static Engine of(LockManager lockManager, Path path, int maxNrPages, int pageSize, Options options,
+                     CommitSequence commits) throws IOException {
+        return new Engine(IOController.of(path, maxNrPages, pageSize, options.ioMode()), lockManager, commits, options);
     }
 
     public void init() throws IOException {
+        metadata.load();
         ioController.init();
-        lastPage = new AtomicReference<>(Page.of(0, ioController.config().pageSize()));
+
+        var nrOfPages = ioController.nrOfPages();
+        var lastPageNo = nrOfPages - 1;
+        freeSpaceMap.load();
+        // mapped heap file doesn't count empty pages at its end, their numbers are handed out again
+        freeSpaceMap.truncate(nrOfPages);
+        if (!index.exists() && nrOfPages > 0) {
+            // no index file, rebuild it from heap pages
+            lastPageNo = RecoveryScan.of(ioController, index, freeSpaceMap).run(nrOfPages);
+            // empty pages past the last scanned record get numbers of new pages
+            if (lastPageNo + 1 < nrOfPages) {
+                freeSpaceMap.truncate(lastPageNo + 1);
+                ioController.truncate(lastPageNo + 1);
+            }
+        }
+        index.load();
+
+        // appends continue in the last page, other tail pages are claimed when used
+        this.nrOfPages.set(lastPageNo + 1);
+        if (bloomFilters != null) {
+            bloomFilters.load(lastPageNo + 1, metadata.checkpoint());
+        }
+        if (lastPageNo >= 0) {
+            tailPages.set(0, pageCache.pin(lastPageNo));
+        }
+
+        // redo changes which didn't make it to heap and index files before crash
+        log.open();
+        if (log.replay(this::apply) > 0 || log.size() > 0) {
+            freeOrphanedOverflowPages();
+            checkpoint();
+        }
+    }
+
+    /**
+     * Checkpoints and closes all files.
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.stop();
+        checkpoint();
+        log.close();
+        index.close();
+        ioController.close();
+    }
+
+    /**
+     * Writes dirty pages and index to disk and discards write ahead log.
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            pageCache.flush();
+            ioController.force();
+            index.checkpoint();
+            freeSpaceMap.save();
+            var checkpointNo = metadata.checkpoint() + 1;
+            if (bloomFilters != null) {
+                bloomFilters.save(checkpointNo);
+            }
+            metadata.checkpoint(checkpointNo);
+            log.truncate();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
     }
 
+    /**
+     * Runs compaction right away, without throttling.
+     *
+     * @return number of pages truncated from the end of the heap file
+     */
+    @Override
+    public int compact() {
+        return compactor.compact(false);
+    }
+
+    @Override
     public void put(byte[] key, byte[] value) throws IOException {
-        var record = Record.of(key, value, ioController.config().pageSize());
+        Record.assertKeySize(key, maxRecordSize());
+
+        write(List.of(key), () -> {
+            log.commit(Op.put(key, value));
+            put(key, newRecord(key, value));
+            return null;
+        });
+        checkpointIfNeeded();
+    }
 
-        remove(key); // remove old record if exists - no duplicates
+    /**
+     * Puts all entries, logged as one write ahead log record. Records are grouped by page,
+     * so every page is locked and modified once per batch. When key repeats, last entry wins.
+     */
+    @Override
+    public void putAll(List<? extends Map.Entry<byte[], byte[]>> entries) throws IOException {
+        var values = new LinkedHashMap<ByteArrayWrapper, Map.Entry<byte[], byte[]>>();
+        var ops = new ArrayList<Op>(entries.size());
+        for (var entry : entries) {
+            Record.assertKeySize(entry.getKey(), maxRecordSize());
+            values.put(ByteArrayWrapper.of(entry.getKey()), entry);
+            ops.add(Op.put(entry.getKey(), entry.getValue()));
+        }
+        if (values.isEmpty()) {
+            return;
+        }
 
-        var tmpLastPage = lastPage.get();
-        var lock = lockManager.lockForPage(tmpLastPage.number());
+        var keys = values.values().stream().map(Map.Entry::getKey).collect(toList());
+        write(keys, () -> {
+            log.commit(ops);
+            var records = values.values().stream()
+                    .map(entry -> newRecord(entry.getKey(), entry.getValue()))
+                    .collect(toList());
+            deleteAll(keys, false);
+            insert(records);
+            return null;
+        });
+        checkpointIfNeeded();
+    }
+
+    @Override
+    public Record remove(byte[] key) throws IOException {
+        if (!contains(key)) {
+            return null;
+        }
+
+        var record = write(List.of(key), () -> {
+            log.commit(Op.remove(key));
+            return delete(key, true);
+        });
+        checkpointIfNeeded();
+        return decompress(record);
+    }
+
+    /**
+     * Removes all keys, logged as one write ahead log record.
+     *
+     * @return removed records in order of keys, null for missing keys
+     */
+    @Override
+    public List<Record> removeAll(List<byte[]> keys) throws IOException {
+        if (keys.stream().noneMatch(this::contains)) {
+            return Arrays.asList(new Record[keys.size()]);
+        }
+
+        var records = write(keys, () -> {
+            // keys put meanwhile are removed as well, so they are looked up under key locks
+            var ops = keys.stream()
+                    .filter(this::contains)
+                    .map(Op::remove)
+                    .collect(toList());
+            if (!ops.isEmpty()) {
+                log.commit(ops);
+            }
+            return deleteAll(keys, true);
+        });
+        checkpointIfNeeded();
+        return decompress(records);
+    }
+
+    /**
+     * Runs change of keys while checkpoint is held off and keys are locked, so changes
+     * of the same key are logged and applied in the same order. Previous records of keys
+     * are kept for open snapshots.
+     */
+    private <R> R write(List<byte[]> keys, Supplier<R> write) throws IOException {
+        checkpointLock.readLock().lock();
+        var locked = lockManager.lockKeys(keys);
+        try {
+            var change = commits.begin();
+            try {
+                versions.keep(change, keys, this::getAll);
+                return write.get();
+            } finally {
+                change.commit();
+            }
+        } finally {
+            locked.close();
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Creates record with compressed value, when compression is on and value gets smaller.
+     * Large value is written to overflow pages right away, so it has to be logged first.
+     */
+    private Record newRecord(byte[] key, byte[] value) {
+        var compressed = compression.compress(value);
+        var stored = compressed != null ? compressed : value;
+        if (Record.Header.SIZE + key.length + stored.length > overflowThreshold) {
+            var chainId = ThreadLocalRandom.current().nextLong();
+            return Record.overflow(key, stored.length, writeOverflow(chainId, stored), chainId,
+                    compressed != null, maxRecordSize());
+        }
+        return compressed != null
+                ? Record.compressed(key, compressed, maxRecordSize())
+                : Record.of(key, value, maxRecordSize());
+    }
+
+    private int maxRecordSize() {
+        return Page.maxRecordSize(ioController.config().pageSize());
+    }
+
+    /**
+     * Writes bytes into chain of overflow pages, from the last page to the first one,
+     * so every page knows its next page when it is written.
+     *
+     * @return number of the first page
+     */
+    private int writeOverflow(long chainId, byte[] bytes) {
+        var capacity = Page.overflowCapacity(ioController.config().pageSize());
+        var nrOfChunks = Math.max(1, (bytes.length + capacity - 1) / capacity);
+        var nextPageNo = -1;
+        for (int chunk = nrOfChunks - 1; chunk >= 0; chunk--) {
+            nextPageNo = writeOverflowPage(chainId, nextPageNo, bytes, chunk * capacity);
+        }
+        return nextPageNo;
+    }
+
+    /**
+     * Writes chunk into empty page found in free space map, or into new page.
+     */
+    private int writeOverflowPage(long chainId, int nextPageNo, byte[] bytes, int offset) {
+        var pageSize = ioController.config().pageSize();
+        var tried = new HashSet<Integer>();
+        int pageNo;
+        // nearly empty pages are candidates, only empty ones are taken
+        while ((pageNo = freeSpaceMap.find(pageSize - pageSize / 64, nrOfPages.get(), no -> !isTailPage(no) && !tried.contains(no))) > -1) {
+            var candidateNo = pageNo;
+            var written = lockManager.lockForPage(candidateNo).underWriteLock(() -> {
+                var page = pageCache.pin(candidateNo);
+                try {
+                    if (!page.writeOverflow(chainId, nextPageNo, bytes, offset)) {
+                        return false;
+                    }
+                    pageCache.markDirty(page);
+                    freeSpaceMap.update(candidateNo, page.freeSpace());
+                    return true;
+                } finally {
+                    pageCache.unpin(page, false);
+                }
+            });
+            if (written) {
+                return candidateNo;
+            }
+            tried.add(candidateNo);
+        }
+
+        var page = Page.of(nrOfPages.getAndIncrement(), pageSize);
+        page.writeOverflow(chainId, nextPageNo, bytes, offset);
+        pageCache.pin(page);
+        pageCache.unpin(page, false);
+        freeSpaceMap.update(page.number(), page.freeSpace());
+        return page.number();
+    }
+
+    /**
+     * @return record with value read from overflow pages, or null when chain was freed meanwhile
+     */
+    private Record readOverflow(Record record) {
+        var value = ByteBuffer.allocate(record.overflowSize());
+        var pageNo = record.overflowPageNo();
+        while (pageNo > -1) {
+            var page = pageCache.pin(pageNo);
+            try {
+                pageNo = page.readOverflow(record.overflowChainId(), value);
+            } finally {
+                pageCache.unpin(page, false);
+            }
+            if (pageNo == Page.NOT_IN_CHAIN) {
+                return null;
+            }
+        }
+        return record.withOverflowValue(value.array());
+    }
+
+    /**
+     * Turns pages of overflow chain back into empty pages.
+     */
+    private void freeOverflow(Record record) {
+        var pageNo = record.overflowPageNo();
+        while (pageNo > -1) {
+            var page = pageCache.pin(pageNo);
+            try {
+                pageNo = page.freeOverflow(record.overflowChainId());
+                pageCache.markDirty(page);
+                freeSpaceMap.update(page.number(), page.freeSpace());
+            } finally {
+                pageCache.unpin(page, false);
+            }
+        }
+    }
+
+    /**
+     * Decompresses record read from page or read from overflow pages.
+     */
+    private Record decompress(Record record) {
+        return record != null && record.isCompressed()
+                ? Record.of(record.key(), compression.decompress(record.value()))
+                : record;
+    }
+
+    private List<Record> decompress(List<Record> records) {
+        records.replaceAll(this::decompress);
+        return records;
+    }
+
+    private void put(byte[] key, Record record) {
+        delete(key, false); // remove old record if exists - no duplicates
+        insert(List.of(record));
+    }
+
+    /**
+     * Inserts records into pages with enough free space, found in free space map,
+     * and only rest of them into the tail page.
+     */
+    private void insert(List<Record> records) {
+        var remaining = records;
+        while (!remaining.isEmpty()) {
+            // tail pages are left to their writers
+            var pageNo = freeSpaceMap.find(remaining.get(0).size() + Page.SLOT_SIZE, nrOfPages.get(), no -> !isTailPage(no));
+            if (pageNo < 0) {
+                break;
+            }
+            // free space of the page is updated, so it isn't found again when records don't fit
+            remaining = putIntoFreePage(pageNo, remaining);
+        }
 
-        execute(
-            lock.inWriteOperation(() -> {
-                for (;;) {
-                    var page = lastPage.get();
+        if (!remaining.isEmpty()) {
+            putIntoTailPage(remaining);
+        }
+    }
 
+    /**
+     * @return records which didn't fit into the page
+     */
+    private List<Record> putIntoFreePage(int pageNo, List<Record> records) {
+        var lock = lockManager.lockForPage(pageNo);
+        return lock.underWriteLock(() -> {
+            var page = pageCache.pin(pageNo);
+            try {
+                var rejected = new ArrayList<Record>();
+                for (var record : records) {
                     if (page.addRecord(record)) {
-                        index.put(ByteArrayWrapper.of(key), page.number());
-                        ioController.write(page);
-                        break;
+                        indexPut(record.key(), pageNo);
                     } else {
-                        var newPage = Page.of(page.number()+1, ioController.config().pageSize(), record);
-                        index.put(ByteArrayWrapper.of(key), newPage.number());
-                        if (! lastPage.compareAndSet(page, newPage)) {
-                            continue;
-                        }
-                        ioController.write(newPage);
-                        break;
+                        rejected.add(record);
                     }
                 }
-                return null;
-        }));
+                if (rejected.size() < records.size()) {
+                    pageCache.markDirty(page);
+                }
+                freeSpaceMap.update(pageNo, page.freeSpace());
+                return rejected;
+            } finally {
+                pageCache.unpin(page, false);
+            }
+        });
     }
 
-    public Record remove(byte[] key) {
-        // check buffer first
-        var tmpLastPage = lastPage.get();
-        if (tmpLastPage != null && tmpLastPage.contains(key)) {
-            var lock = lockManager.lockForPage(tmpLastPage.number());
-            return execute(
-                    lock.inWriteOperation(() ->
-                            remove(tmpLastPage, key)));
+    private void putIntoTailPage(List<Record> records) {
+        var tail = tailOfCurrentThread();
+        for (var record : records) {
+            putIntoTailPage(tail, record);
         }
-        // check index
-        else {
-            int pageNo = index.getOrDefault(ByteArrayWrapper.of(key), -1);
-            if (pageNo > -1 ) {
-                var lock = lockManager.lockForPage(pageNo);
-                return execute(
-                        // lock sequence = writeLock.lock -> readLock.lock -> readLock.unlock() -> writeLock.unlock()
-                        lock.inWriteOperation(() ->
-                                remove(getPage(pageNo, lock), key)));
+    }
+
+    /**
+     * Adds record to tail page under lock of the page. Full tail page is replaced by new empty
+     * page under lock of the full page, then record is added to the new page under its own lock.
+     */
+    private void putIntoTailPage(int tail, Record record) {
+        for (;;) {
+            var page = tailPage(tail);
+            boolean added = lockManager.lockForPage(page.number()).underWriteLock(() -> {
+                if (tailPages.get(tail) != page) {
+                    return false; // replaced by another writer of the tail
+                }
+                if (page.addRecord(record)) {
+                    indexPut(record.key(), page.number());
+                    pageCache.markDirty(page);
+                    return true;
+                }
+                var newPage = Page.of(nrOfPages.getAndIncrement(), ioController.config().pageSize());
+                if (tailPages.compareAndSet(tail, page, newPage)) {
+                    // tail page stays pinned in cache until next one is created
+                    pageCache.pin(newPage);
+                    pageCache.unpin(page, false);
+                    freeSpaceMap.update(page.number(), page.freeSpace());
+                } else {
+                    freePage(newPage);
+                }
+                return false;
+            });
+            if (added) {
+                return;
             }
         }
+    }
 
-        return null;
+    /**
+     * Turns page, which got number but wasn't used, into empty page found by inserts.
+     */
+    private void freePage(Page page) {
+        // new page is put into cache as dirty, so it is written to the heap file
+        pageCache.pin(page);
+        freeSpaceMap.update(page.number(), page.freeSpace());
+        pageCache.unpin(page, false);
     }
 
-    public Record get(byte[] key) throws IOException {
-        // check buffer first;
-        Record record;
-        if (null != (record = lastPage.get().getRecord(key))) {
-            return record;
+    /**
+     * @return tail page used by current thread
+     */
+    private int tailOfCurrentThread() {
+        return (int) (Thread.currentThread().getId() % tailPages.length());
+    }
+
+    private Page tailPage(int tail) {
+        var page = tailPages.get(tail);
+        if (page == null) {
+            synchronized (tailPages) {
+                page = tailPages.get(tail);
+                if (page == null) {
+                    page = Page.of(nrOfPages.getAndIncrement(), ioController.config().pageSize());
+                    pageCache.pin(page);
+                    tailPages.set(tail, page);
+                }
+            }
+        }
+        return page;
+    }
+
+    private boolean isTailPage(int pageNo) {
+        return tailPageWithNumber(pageNo) != null;
+    }
+
+    private Page tailPageWithNumber(int pageNo) {
+        for (int tail = 0; tail < tailPages.length(); tail++) {
+            var page = tailPages.get(tail);
+            if (page != null && page.number() == pageNo) {
+                return page;
+            }
         }
+        return null;
+    }
+
+    /**
+     * Deletes keys page by page, every page is locked once.
+     *
+     * @param readOverflow whether overflow values are read before they are freed
+     * @return deleted records in order of keys, null for missing keys
+     */
+    private List<Record> deleteAll(List<byte[]> keys, boolean readOverflow) {
+        var deleted = new Record[keys.size()];
+        groupByPage(keys).forEach((pageNo, positions) -> {
+            var lock = lockManager.lockForPage(pageNo);
+            lock.underWriteLock(() -> {
+                var page = pageCache.pin(pageNo);
+                try {
+                    for (int position : positions) {
+                        deleted[position] = delete(page, keys.get(position), readOverflow);
+                    }
+                } finally {
+                    pageCache.unpin(page, false);
+                }
+                return null;
+            });
+        });
+        return Arrays.asList(deleted);
+    }
 
-        int pageNo = index.getOrDefault(ByteArrayWrapper.of(key), -1);
+    private Record delete(byte[] key, boolean readOverflow) {
+        // index covers tail pages as well
+        int pageNo = pageOf(key);
         if (pageNo > -1 ) {
             var lock = lockManager.lockForPage(pageNo);
-            return execute(
-                    lock.inReadOperation(() ->
-                            ioController.findPage(pageNo).getRecord(key)));
+            return lock.underWriteLock(() -> {
+                var page = pageCache.pin(pageNo);
+                try {
+                    return delete(page, key, readOverflow);
+                } finally {
+                    pageCache.unpin(page, false);
+                }
+            });
+        }
+
+        return null;
+    }
+
+    @Override
+    public Record get(byte[] key) throws IOException {
+        // pages guard their content, so reads don't take page locks
+        int pageNo;
+        while ((pageNo = pageOf(key)) > -1) {
+            var page = pageCache.pin(pageNo);
+            Record record;
+            try {
+                record = page.getRecord(key);
+            } finally {
+                pageCache.unpin(page, false);
+            }
+            if (record != null && record.isOverflow() && (record = readOverflow(record)) == null) {
+                continue; // value was replaced meanwhile
+            }
+            // record could be moved by compactor meanwhile, then index points to another page
+            if (record != null || pageOf(key) == pageNo) {
+                return decompress(record);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public int get(byte[] key, ByteBuffer target) throws IOException {
+        int pageNo;
+        while ((pageNo = pageOf(key)) > -1) {
+            var page = pageCache.pin(pageNo);
+            int size;
+            try {
+                size = page.readValue(key, target);
+            } finally {
+                pageCache.unpin(page, false);
+            }
+            // record could be moved by compactor meanwhile, then index points to another page
+            if (size == Page.ENCODED) {
+                return readDecoded(key, target);
+            }
+            if (size > -1 || pageOf(key) == pageNo) {
+                return size;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Uncompressed overflow value is read page by page while stream is consumed,
+     * other values are read at once.
+     */
+    @Override
+    public InputStream getStream(byte[] key) throws IOException {
+        var pageNo = pageOf(key);
+        if (pageNo > -1) {
+            var page = pageCache.pin(pageNo);
+            Record record;
+            try {
+                record = page.getRecord(key);
+            } finally {
+                pageCache.unpin(page, false);
+            }
+            if (record != null && record.isOverflow() && !record.isCompressed()) {
+                return new OverflowInputStream(record);
+            }
+        }
+
+        var record = get(key);
+        return record != null ? new ByteArrayInputStream(record.value()) : null;
+    }
+
+    private int readDecoded(byte[] key, ByteBuffer target) throws IOException {
+        var record = get(key);
+        if (record == null) {
+            return -1;
+        }
+        var value = record.value();
+        if (value.length <= target.remaining()) {
+            target.put(value);
+        }
+        return value.length;
+    }
+
+    /**
+     * Gets records page by page, every page is read once.
+     *
+     * @return records in order of keys, null for missing keys
+     */
+    @Override
+    public List<Record> getAll(List<byte[]> keys) throws IOException {
+        var records = new Record[keys.size()];
+        groupByPage(keys).forEach((pageNo, positions) -> {
+            var page = pageCache.pin(pageNo);
+            try {
+                for (int position : positions) {
+                    records[position] = page.getRecord(keys.get(position));
+                }
+            } finally {
+                pageCache.unpin(page, false);
+            }
+        });
+        // records moved by compactor meanwhile are looked up again
+        for (int position = 0; position < records.length; position++) {
+            var record = records[position];
+            if (record == null && pageOf(keys.get(position)) > -1 || record != null && record.isOverflow()) {
+                records[position] = get(keys.get(position));
+            } else {
+                records[position] = decompress(records[position]);
+            }
+        }
+        return Arrays.asList(records);
+    }
+
+    @Override
+    public Iterator<Record> scan(byte[] from, byte[] to) {
+        return new ScanIterator(index.keys(from, to), this::getAll);
+    }
+
+    /**
+     * Opens snapshot without holding off writers, changes committed later are not seen by the snapshot.
+     */
+    @Override
+    public Snapshot snapshot() {
+        return new EngineSnapshot(commits.open(), true);
+    }
+
+    /**
+     * Begins transaction reading snapshot, which is opened without holding off writers.
+     */
+    @Override
+    public Transaction begin() {
+        return new EngineTransaction(new EngineSnapshot(commits.open(), true));
+    }
+
+    /**
+     * @return snapshot of the sequence opened by sharded snapshot, which closes the sequence
+     */
+    Snapshot snapshotOf(long sequence) {
+        return new EngineSnapshot(sequence, false);
+    }
+
+    /**
+     * @return transaction reading snapshot of the sequence opened by sharded transaction
+     */
+    EngineTransaction transactionOf(long sequence) {
+        return new EngineTransaction(new EngineSnapshot(sequence, false));
+    }
+
+    /**
+     * Drops versions, which no open snapshot reads.
+     */
+    void pruneVersions(long oldest) {
+        versions.prune(oldest);
+    }
+
+    int lastPageNumber() {
+        return nrOfPages.get() - 1;
+    }
+
+    /**
+     * @return true when at least half of the page is free
+     */
+    boolean isSparse(int pageNo) {
+        var pageSize = ioController.config().pageSize();
+        // free space map isn't updated while records are appended to tail page
+        var tailPage = tailPageWithNumber(pageNo);
+        var freeSpace = tailPage != null ? tailPage.freeSpace() : freeSpaceMap.freeSpace(pageNo);
+        return freeSpace >= pageSize / 2;
+    }
+
+    /**
+     * Moves records of the page to free space in preceding pages, space of deleted records is reclaimed
+     * when some records stay in the page. Records are moved one by one like writes, under lock
+     * of the key, and only one page is locked at a time, so writers of other keys and pages
+     * go on. Moves are logged as puts of the same values, so they are redone after crash.
+     *
+     * @return number of moved records
+     */
+    int relocate(int pageNo) {
+        checkpointLock.readLock().lock();
+        try {
+            if (pageNo >= nrOfPages.get()) {
+                return 0; // truncated meanwhile
+            }
+
+            var page = pageCache.pin(pageNo);
+            try {
+                var records = new ArrayList<Record>();
+                page.forEachRecord(record -> records.add(record.copy()));
+
+                int moved = 0;
+                for (var record : records) {
+                    if (record.isOverflow()) {
+                        continue; // pointers stay, moves are logged with values and overflow values are not read here
+                    }
+                    if (relocate(page, record.key())) {
+                        moved++;
+                    }
+                }
+
+                lockManager.lockForPage(pageNo).underWriteLock(() -> {
+                    if (page.vacuum()) {
+                        pageCache.markDirty(page);
+                    }
+                    freeSpaceMap.update(pageNo, page.freeSpace());
+                    return null;
+                });
+                return moved;
+            } finally {
+                pageCache.unpin(page, false);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves record with given key, unless it was changed or removed since the page was read.
+     * Record is added to target page before it is removed from the page, so reader finds it
+     * in one of them.
+     */
+    private boolean relocate(Page page, byte[] key) {
+        var locked = lockManager.lockKeys(List.of(key));
+        try {
+            var record = page.getRecord(key);
+            if (record == null || record.isOverflow()) {
+                return false;
+            }
+            var required = record.size() + Page.SLOT_SIZE;
+            var targetNo = freeSpaceMap.find(required, nrOfPages.get(), no -> no < page.number() && !isTailPage(no));
+            if (targetNo < 0) {
+                return false;
+            }
+
+            // logged before any page is modified, redo of move which didn't happen puts the same value
+            log.commit(Op.put(key, decompress(record).value()));
+            boolean added = lockManager.lockForPage(targetNo).underWriteLock(() -> {
+                var target = pageCache.pin(targetNo);
+                try {
+                    if (!target.addRecord(record)) {
+                        freeSpaceMap.update(targetNo, target.freeSpace());
+                        return false;
+                    }
+                    if (bloomFilters != null) {
+                        bloomFilters.add(key, targetNo);
+                    }
+                    pageCache.markDirty(target);
+                    freeSpaceMap.update(targetNo, target.freeSpace());
+                    return true;
+                } finally {
+                    pageCache.unpin(target, false);
+                }
+            });
+            if (!added) {
+                return false;
+            }
+
+            index.move(key, page.number(), targetNo);
+            lockManager.lockForPage(page.number()).underWriteLock(() -> {
+                page.removeRecord(key);
+                pageCache.markDirty(page);
+                return null;
+            });
+            return true;
+        } finally {
+            locked.close();
+        }
+    }
+
+    /**
+     * Removes empty pages from the end of the heap file, empty tail pages among them
+     * are replaced by new ones when used again. Page pinned by a reader stays, and so do pages
+     * before it, they are removed by next compaction.
+     *
+     * @return number of removed pages
+     */
+    int truncate() {
+        checkpointLock.writeLock().lock();
+        try {
+            var oldNrOfPages = nrOfPages.get();
+            var newNrOfPages = oldNrOfPages;
+            while (newNrOfPages > 0 && isEmpty(newNrOfPages - 1)) {
+                newNrOfPages--;
+            }
+            if (newNrOfPages == oldNrOfPages) {
+                return 0;
+            }
+
+            // pages are discarded from the end, file ends before the first page still pinned by a reader
+            for (int pageNo = oldNrOfPages - 1; pageNo >= newNrOfPages; pageNo--) {
+                var tailPage = releaseTailPage(pageNo);
+                if (!pageCache.discard(pageNo)) {
+                    if (tailPage != null) {
+                        freeSpaceMap.update(pageNo, tailPage.freeSpace());
+                    }
+                    newNrOfPages = pageNo + 1;
+                    break;
+                }
+            }
+            if (newNrOfPages == oldNrOfPages) {
+                return 0;
+            }
+            freeSpaceMap.truncate(newNrOfPages);
+            ioController.truncate(newNrOfPages);
+            nrOfPages.set(newNrOfPages);
+            return oldNrOfPages - newNrOfPages;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            checkpointLock.writeLock().unlock();
         }
+    }
 
+    /**
+     * Stops appending to tail page with given number, it is replaced by new page when used again.
+     *
+     * @return released tail page, or null when page isn't a tail page
+     */
+    private Page releaseTailPage(int pageNo) {
+        for (int tail = 0; tail < tailPages.length(); tail++) {
+            var page = tailPages.get(tail);
+            if (page != null && page.number() == pageNo) {
+                tailPages.set(tail, null);
+                pageCache.unpin(page, false);
+                return page;
+            }
+        }
         return null;
     }
 
-    private Record remove(Page page, byte[] key) {
-        var record = page.getRecord(key);
+    private boolean isEmpty(int pageNo) {
+        var page = pageCache.pin(pageNo);
+        try {
+            return page.isEmpty();
+        } finally {
+            pageCache.unpin(page, false);
+        }
+    }
+
+    /**
+     * @param readOverflow whether overflow value is read before it is freed,
+     *                     otherwise returned record keeps the pointer
+     */
+    private Record delete(Page page, byte[] key, boolean readOverflow) {
+        var record = page.removeRecord(key);
         if (record != null) {
-            index.remove(ByteArrayWrapper.of(key)); // remove from index first
-            record.delete();
-            ioController.write(page);
+            index.remove(key, page.number());
+            pageCache.markDirty(page);
+            freeSpaceMap.update(page.number(), page.freeSpace());
+            if (record.isOverflow()) {
+                var pointer = record;
+                // chain can't be freed by anyone else, while page of the pointer is locked
+                record = readOverflow ? readOverflow(pointer) : pointer;
+                freeOverflow(pointer);
+            }
         }
         return record;
     }
 
-    private Page getPage(int no, LockSupport lock) {
-        return execute(
-                lock.inReadOperation(() -> ioController.findPage(no)));
+    /**
+     * @return positions of keys grouped by page number, keys which are not in index are skipped
+     */
+    private Map<Integer, List<Integer>> groupByPage(List<byte[]> keys) {
+        var pages = new TreeMap<Integer, List<Integer>>();
+        for (int position = 0; position < keys.size(); position++) {
+            var pageNo = pageOf(keys.get(position));
+            if (pageNo > -1) {
+                pages.computeIfAbsent(pageNo, no -> new ArrayList<>()).add(position);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Key gets into Bloom filter first, so it is never missing there, when it is found in index.
+     */
+    private void indexPut(byte[] key, int pageNo) {
+        if (bloomFilters != null) {
+            bloomFilters.add(key, pageNo);
+        }
+        index.put(key, pageNo);
     }
 
-    private <R> R execute(CompletableFuture<R> future) {
+    /**
+     * @return page of the key, or -1 when key isn't in index or Bloom filter tells page doesn't hold it
+     */
+    private int pageOf(byte[] key) {
+        var pageNo = index.get(key, candidateNo -> mightHold(candidateNo, key) && holds(candidateNo, key));
+        return pageNo > -1 && mightHold(pageNo, key) ? pageNo : -1;
+    }
+
+    private boolean mightHold(int pageNo, byte[] key) {
+        return bloomFilters == null || bloomFilters.mightContain(key, pageNo);
+    }
+
+    private boolean holds(int pageNo, byte[] key) {
+        var page = pageCache.pin(pageNo);
         try {
-            return future.get(10, TimeUnit.SECONDS);
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            throw new RuntimeException(e);
+            return page.contains(key);
+        } finally {
+            pageCache.unpin(page, false);
         }
     }
-}
 
+    /**
+     * Frees overflow pages of chains no record points to. Chain is written before its pointer
+     * is added and freed after its pointer is removed, so crash in between leaves chain
+     * without pointer, which replay of the log doesn't find.
+     */
+    private void freeOrphanedOverflowPages() {
+        var chains = new HashSet<Long>();
+        var overflowPages = new ArrayList<Integer>();
+        for (int pageNo = 0; pageNo < nrOfPages.get(); pageNo++) {
+            var page = pageCache.pin(pageNo);
+            try {
+                if (page.overflowChainId() != Page.NOT_IN_CHAIN) {
+                    overflowPages.add(pageNo);
+                } else {
+                    page.forEachRecord(record -> {
+                        if (record.isOverflow()) {
+                            chains.add(record.overflowChainId());
+                        }
+                    });
+                }
+            } finally {
+                pageCache.unpin(page, false);
+            }
+        }
+        for (int pageNo : overflowPages) {
+            var page = pageCache.pin(pageNo);
+            try {
+                var chainId = page.overflowChainId();
+                if (!chains.contains(chainId)) {
+                    page.freeOverflow(chainId);
+                    pageCache.markDirty(page);
+                    freeSpaceMap.update(pageNo, page.freeSpace());
+                }
+            } finally {
+                pageCache.unpin(page, false);
+            }
+        }
+    }
+
+    /**
+     * Reads keys of existing pages in range, used to rebuild Bloom filters.
+     */
+    private void forEachKey(int fromPageNo, int toPageNo, Consumer<byte[]> consumer) {
+        for (int pageNo = fromPageNo; pageNo < Math.min(toPageNo, nrOfPages.get()); pageNo++) {
+            var page = pageCache.pin(pageNo);
+            try {
+                page.forEachRecord(record -> consumer.accept(record.key()));
+            } finally {
+                pageCache.unpin(page, false);
+            }
+        }
+    }
+
+    private boolean contains(byte[] key) {
+        return pageOf(key) > -1;
+    }
+
+    private void apply(Op op) {
+        if (op.isPut()) {
+            put(op.key(), newRecord(op.key(), op.value()));
+        } else {
+            delete(op.key(), false);
+        }
+    }
+
+    void checkpointIfNeeded() throws IOException {
+        if (log.size() > maxLogSize) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Reads overflow chain page by page, fails when value is removed or replaced while it is read.
+     */
+    private class OverflowInputStream extends InputStream {
+
+        private final long chainId;
+        private final ByteBuffer chunk = ByteBuffer.allocate(Page.overflowCapacity(ioController.config().pageSize()));
+        private int nextPageNo;
+
+        private OverflowInputStream(Record pointer) {
+            this.chainId = pointer.overflowChainId();
+            this.nextPageNo = pointer.overflowPageNo();
+            chunk.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? Byte.toUnsignedInt(chunk.get()) : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            Objects.checkFromIndexSize(offset, length, bytes.length);
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            var read = Math.min(length, chunk.remaining());
+            chunk.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return chunk.remaining();
+        }
+
+        /**
+         * @return false at the end of the value
+         */
+        private boolean fill() throws IOException {
+            while (!chunk.hasRemaining()) {
+                if (nextPageNo < 0) {
+                    return false;
+                }
+                var page = pageCache.pin(nextPageNo);
+                try {
+                    chunk.clear();
+                    nextPageNo = page.readOverflow(chainId, chunk);
+                    chunk.flip();
+                } finally {
+                    pageCache.unpin(page, false);
+                }
+                if (nextPageNo == Page.NOT_IN_CHAIN) {
+                    throw new IOException("Value was removed or replaced while it was read.");
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads store as it was when snapshot was opened. Records are read from pages and
+     * replaced with versions superseded after the snapshot, versions are looked up
+     * after pages are read, so changes made meanwhile are never missed.
+     */
+    private class EngineSnapshot implements Snapshot {
+
+        private final long sequence;
+        // false when sequence is opened and closed by sharded snapshot
+        private final boolean ownsSequence;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private EngineSnapshot(long sequence, boolean ownsSequence) {
+            this.sequence = sequence;
+            this.ownsSequence = ownsSequence;
+        }
+
+        @Override
+        public Record get(byte[] key) throws IOException {
+            assertOpen();
+            var record = Engine.this.get(key);
+            var version = versions.find(key, sequence);
+            return version != null ? version.record() : record;
+        }
+
+        @Override
+        public List<Record> getAll(List<byte[]> keys) throws IOException {
+            assertOpen();
+            var records = Engine.this.getAll(keys);
+            for (int position = 0; position < records.size(); position++) {
+                var version = versions.find(keys.get(position), sequence);
+                if (version != null) {
+                    records.set(position, version.record());
+                }
+            }
+            return records;
+        }
+
+        /**
+         * Keys removed after the snapshot are found in version store.
+         */
+        @Override
+        public Iterator<Record> scan(byte[] from, byte[] to) {
+            assertOpen();
+            return new ScanIterator(versions.keys(from, to, index.keys(from, to)), this::getAll);
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true) && ownsSequence) {
+                versions.prune(commits.close(sequence));
+            }
+        }
+
+        private void assertOpen() {
+            if (closed.get()) {
+                throw new IllegalStateException("Snapshot is closed.");
+            }
+        }
+    }
+
+    /**
+     * Changes are kept in memory until commit. Commit locks keys, checks that they weren't changed
+     * since the snapshot, logs all changes as one record and then applies them page by page,
+     * like {@link #putAll(List)}.
+     */
+    class EngineTransaction implements Transaction {
+
+        private final EngineSnapshot snapshot;
+
+        // new values by key, null value for removed key
+        private final Map<ByteArrayWrapper, byte[]> changes = new LinkedHashMap<>();
+        private boolean finished;
+
+        // locks of changed keys, held from prepare to release
+        private KeyLocks locked;
+
+        private EngineTransaction(EngineSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public Record get(byte[] key) throws IOException {
+            assertActive();
+            var wrapper = ByteArrayWrapper.of(key);
+            if (changes.containsKey(wrapper)) {
+                var value = changes.get(wrapper);
+                return value != null ? Record.of(key, value) : null;
+            }
+            return snapshot.get(key);
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            assertActive();
+            Record.assertKeySize(key, maxRecordSize());
+            changes.put(ByteArrayWrapper.of(key), Objects.requireNonNull(value));
+        }
+
+        @Override
+        public void remove(byte[] key) {
+            assertActive();
+            changes.put(ByteArrayWrapper.of(key), null);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            assertActive();
+            try {
+                lock();
+                try {
+                    check();
+                    var change = commits.begin();
+                    try {
+                        keep(change);
+                        apply();
+                    } finally {
+                        change.commit();
+                    }
+                } finally {
+                    unlock();
+                }
+                checkpointIfNeeded();
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void rollback() {
+            assertActive();
+            finish();
+        }
+
+        @Override
+        public void close() {
+            if (!finished) {
+                finish();
+            }
+        }
+
+        /**
+         * Locks changed keys and holds off checkpoint, until they are unlocked.
+         */
+        void lock() {
+            assertActive();
+            checkpointLock.readLock().lock();
+            locked = lockManager.lockKeys(keys());
+        }
+
+        /**
+         * @throws TransactionConflictException when any key was changed since the snapshot
+         */
+        void check() {
+            versions.check(keys(), snapshot.sequence);
+        }
+
+        /**
+         * Keeps current records of changed keys for snapshots, when change is tracked.
+         */
+        void keep(CommitSequence.Change change) throws IOException {
+            versions.keep(change, keys(), Engine.this::getAll);
+        }
+
+        void apply() {
+            if (changes.isEmpty()) {
+                return;
+            }
+            var ops = new ArrayList<Op>(changes.size());
+            var records = new ArrayList<Record>();
+            changes.forEach((key, value) -> ops.add(value != null ? Op.put(key.getData(), value) : Op.remove(key.getData())));
+            log.commit(ops);
+            changes.forEach((key, value) -> {
+                if (value != null) {
+                    records.add(newRecord(key.getData(), value));
+                }
+            });
+            deleteAll(keys(), false);
+            insert(records);
+        }
+
+        void unlock() {
+            locked.close();
+            checkpointLock.readLock().unlock();
+        }
+
+        void finish() {
+            finished = true;
+            changes.clear();
+            snapshot.close();
+        }
+
+        private List<byte[]> keys() {
+            return changes.keySet().stream().map(ByteArrayWrapper::getData).collect(toList());
+        }
+
+        private void assertActive() {
+            if (finished) {
+                throw new IllegalStateException("Transaction is finished.");
+            }
+        }
+    }
+
+    /**
+     * Reads records of keys in batches, every batch is read page by page. Keys removed
+     * after they were taken from index are skipped.
+     */
+    private static class ScanIterator implements Iterator<Record> {
+
+        private final Iterator<byte[]> keys;
+        private final VersionStore.Reader reader;
+        private Iterator<Record> batch = List.<Record>of().iterator();
+        private Record next;
+
+        private ScanIterator(Iterator<byte[]> keys, VersionStore.Reader reader) {
+            this.keys = keys;
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (batch.hasNext()) {
+                    next = batch.next();
+                } else if (keys.hasNext()) {
+                    batch = nextBatch();
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var record = next;
+            next = null;
+            return record;
+        }
+
+        private Iterator<Record> nextBatch() {
+            var batchKeys = new ArrayList<byte[]>(SCAN_BATCH_SIZE);
+            while (batchKeys.size() < SCAN_BATCH_SIZE && keys.hasNext()) {
+                batchKeys.add(keys.next());
+            }
+            try {
+                return reader.read(batchKeys).iterator();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package introdb.heap.engine;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Decides which page should leave {@link PageCache} when it is full.
+ *
+ * Implementations have to be thread safe, cache calls them without holding any lock.
+ */
+public interface EvictionPolicy {
+
+    void onInsert(int pageNo);
+
+    void onAccess(int pageNo);
+
+    void onRemove(int pageNo);
+
+    /**
+     * Chooses page to evict among pages accepted by evictable predicate (not pinned ones).
+     *
+     * @return page number or -1 when there is no page which could be evicted
+     */
+    int victim(IntPredicate evictable);
+
+    static EvictionPolicy clock() {
+        return new ClockEvictionPolicy();
+    }
+
+    static EvictionPolicy lru() {
+        return new LruEvictionPolicy();
+    }
+}
@@ -0,0 +1,136 @@
+package introdb.heap.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Free space map, one byte per page with amount of free space in the page in 1/256 of the page size.
+ *
+ * Pages are grouped in blocks, map keeps max free space of every block, so search for a page
+ * with enough free space skips full blocks without looking at their pages. Map is only a hint,
+ * page is always checked when a record is added to it. It is persisted next to the heap file
+ * on checkpoint, when it is missing all pages are treated as full until they are modified.
+ */
+class FreeSpaceMap {
+
+    static final String SUFFIX = ".fsm";
+
+    private static final int CATEGORIES = 256;
+    private static final int PAGES_PER_BLOCK = 256;
+
+    private final Path path;
+    private final int pageSize;
+
+    private byte[] pages = new byte[0];
+    private byte[] blocks = new byte[0];
+
+    private FreeSpaceMap(Path path, int pageSize) {
+        this.path = path;
+        this.pageSize = pageSize;
+    }
+
+    static FreeSpaceMap of(Path heapFilePath, int pageSize) {
+        return new FreeSpaceMap(heapFilePath.resolveSibling(heapFilePath.getFileName() + SUFFIX), pageSize);
+    }
+
+    synchronized void load() throws IOException {
+        if (Files.exists(path)) {
+            pages = Files.readAllBytes(path);
+            blocks = new byte[blockOf(pages.length) + 1];
+            for (int block = 0; block < blocks.length; block++) {
+                updateBlock(block);
+            }
+        }
+    }
+
+    synchronized void save() throws IOException {
+        try (var channel = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(pages));
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Records amount of free space in page.
+     */
+    synchronized void update(int pageNo, int freeSpace) {
+        if (pageNo >= pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(pageNo + 1, pages.length * 2));
+            blocks = Arrays.copyOf(blocks, blockOf(pages.length) + 1);
+        }
+        pages[pageNo] = (byte) category(freeSpace);
+        updateBlock(blockOf(pageNo));
+    }
+
+    /**
+     * @return free space in page rounded down to the category, 0 for unknown page
+     */
+    synchronized int freeSpace(int pageNo) {
+        return pageNo < pages.length ? Byte.toUnsignedInt(pages[pageNo]) * pageSize / CATEGORIES : 0;
+    }
+
+    /**
+     * Forgets pages past the end of truncated heap file.
+     */
+    synchronized void truncate(int nrOfPages) {
+        if (nrOfPages < pages.length) {
+            pages = Arrays.copyOf(pages, nrOfPages);
+            blocks = Arrays.copyOf(blocks, blockOf(nrOfPages) + 1);
+            updateBlock(blockOf(nrOfPages));
+        }
+    }
+
+    /**
+     * Finds page which should have at least given amount of free space.
+     *
+     * @param nrOfPages number of pages of the heap file, pages past its end are never returned
+     * @param filter accepts pages which can be returned
+     * @return page number or -1, when there is no such page
+     */
+    synchronized int find(int freeSpace, int nrOfPages, IntPredicate filter) {
+        // round up, so every page in found category has enough space
+        var required = (freeSpace * CATEGORIES + pageSize - 1) / pageSize;
+        if (required >= CATEGORIES) {
+            return -1;
+        }
+        var end = Math.min(nrOfPages, pages.length);
+        for (int block = 0; block * PAGES_PER_BLOCK < end; block++) {
+            if (Byte.toUnsignedInt(blocks[block]) < required) {
+                continue;
+            }
+            var to = Math.min((block + 1) * PAGES_PER_BLOCK, end);
+            for (int pageNo = block * PAGES_PER_BLOCK; pageNo < to; pageNo++) {
+                if (Byte.toUnsignedInt(pages[pageNo]) >= required && filter.test(pageNo)) {
+                    return pageNo;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int category(int freeSpace) {
+        return Math.min(CATEGORIES - 1, (int) ((long) freeSpace * CATEGORIES / pageSize));
+    }
+
+    private void updateBlock(int block) {
+        int max = 0;
+        var to = Math.min((block + 1) * PAGES_PER_BLOCK, pages.length);
+        for (int pageNo = block * PAGES_PER_BLOCK; pageNo < to; pageNo++) {
+            max = Math.max(max, Byte.toUnsignedInt(pages[pageNo]));
+        }
+        blocks[block] = (byte) max;
+    }
+
+    private static int blockOf(int pageNo) {
+        return pageNo / PAGES_PER_BLOCK;
+    }
+}
@@ -0,0 +1,218 @@
+package introdb.heap.engine;
+
+import introdb.heap.utils.ByteArrayWrapper;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.IntPredicate;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Index keeping keys on heap, in a hash map, persisted in an index file next to the heap file.
+ *
+ * Every change is appended to the index file as (key, page number) entry, removal is stored
+ * as an entry with page number -1. At startup the file is replayed sequentially into memory,
+ * on close it is rewritten so it contains only live entries.
+ *
+ * Index file format: [key size (int)][page number (int)][key bytes] ...
+ *
+ * Ordered index keeps also a skip list of keys sorted as unsigned bytes, so key ranges can be
+ * iterated. Skip list shares key arrays with the hash map and is not persisted, it is rebuilt
+ * when index is loaded.
+ */
+class HashIndex implements Index {
+
+    static final String SUFFIX = ".idx";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int REMOVED = -1;
+
+    private final Path path;
+    private final ConcurrentMap<ByteArrayWrapper, Integer> entries;
+    // sorted keys, null when index is not ordered
+    private final NavigableSet<byte[]> keys;
+    private DataOutputStream log;
+
+    private HashIndex(Path path, boolean ordered) {
+        this.path = path;
+        this.entries = new ConcurrentHashMap<>();
+        this.keys = ordered ? new ConcurrentSkipListSet<>(Arrays::compareUnsigned) : null;
+    }
+
+    static HashIndex of(Path heapFilePath, boolean ordered) {
+        return new HashIndex(path(heapFilePath), ordered);
+    }
+
+    static Path path(Path heapFilePath) {
+        return heapFilePath.resolveSibling(heapFilePath.getFileName() + SUFFIX);
+    }
+
+    @Override
+    public boolean exists() throws IOException {
+        return Files.exists(path) && Files.size(path) > 0;
+    }
+
+    /**
+     * Replays index file (if there is any) and opens it for appending.
+     */
+    @Override
+    public void load() throws IOException {
+        if (exists()) {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+                for (;;) {
+                    int keySize;
+                    try {
+                        keySize = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    var pageNo = in.readInt();
+                    var key = new byte[keySize];
+                    in.readFully(key);
+
+                    if (pageNo == REMOVED) {
+                        entries.remove(ByteArrayWrapper.of(key));
+                    } else {
+                        entries.put(ByteArrayWrapper.of(key), pageNo);
+                    }
+                }
+            } catch (EOFException e) {
+                // torn entry at the end of the file, everything before it is valid
+            }
+        }
+        if (keys != null) {
+            entries.keySet().forEach(key -> keys.add(key.getData()));
+        }
+        log = openLog();
+    }
+
+    /**
+     * Keys are compared in the map, so pages are never checked.
+     */
+    @Override
+    public int get(byte[] key, IntPredicate holdsKey) {
+        return entries.getOrDefault(ByteArrayWrapper.of(key), REMOVED);
+    }
+
+    @Override
+    public void put(byte[] key, int pageNo) {
+        entries.compute(ByteArrayWrapper.of(key), (k, v) -> {
+            append(key, pageNo);
+            if (keys != null && v == null) {
+                keys.add(key);
+            }
+            return pageNo;
+        });
+    }
+
+    /**
+     * Puts entry rebuilt from heap pages, it is not appended to index file as whole
+     * index is rewritten on close. When key was found on more than one page, later page wins.
+     */
+    @Override
+    public void restore(byte[] key, int pageNo) {
+        entries.merge(ByteArrayWrapper.of(key), pageNo, Math::max);
+        if (keys != null) {
+            keys.add(key);
+        }
+    }
+
+    @Override
+    public void move(byte[] key, int fromPageNo, int toPageNo) {
+        put(key, toPageNo);
+    }
+
+    @Override
+    public void remove(byte[] key, int pageNo) {
+        entries.computeIfPresent(ByteArrayWrapper.of(key), (k, v) -> {
+            append(key, REMOVED);
+            if (keys != null) {
+                keys.remove(key);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Iterator<byte[]> keys(byte[] from, byte[] to) {
+        if (keys == null) {
+            throw new UnsupportedOperationException("Index is not ordered.");
+        }
+        NavigableSet<byte[]> range = keys;
+        if (from != null) {
+            range = range.tailSet(from, true);
+        }
+        if (to != null) {
+            range = range.headSet(to, false);
+        }
+        return range.iterator();
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Rewrites index file with live entries only and forces it to disk.
+     */
+    @Override
+    public synchronized void checkpoint() throws IOException {
+        log.close();
+        rewrite();
+        log = openLog();
+    }
+
+    /**
+     * Rewrites index file with live entries only and closes it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (log == null) {
+            return;
+        }
+        log.close();
+        rewrite();
+        log = null;
+    }
+
+    private synchronized void append(byte[] key, int pageNo) {
+        try {
+            write(log, key, pageNo);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void rewrite() throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var file = new FileOutputStream(tmp.toFile());
+             var out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE))) {
+            for (var entry : entries.entrySet()) {
+                write(out, entry.getKey().getData(), entry.getValue());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile(), true), BUFFER_SIZE));
+    }
+
+    private static void write(DataOutputStream out, byte[] key, int pageNo) throws IOException {
+        out.writeInt(key.length);
+        out.writeInt(pageNo);
+        out.write(key);
+    }
+}
@@ -11,7 +11,7 @@ import static java.nio.file.StandardOpenOption.WRITE;
 class IOController {
 
     private final Config config;
-    private FileChannel fileChannel;
+    FileChannel fileChannel;
 
     IOController(Config config) {
         this.config = config;
@@ -21,18 +21,46 @@ class IOController {
         return new IOController(Config.of(path, pageSize, maxNrPages));
     }
 
+    static IOController of(Path path, int maxNrPages, int pageSize, IOMode ioMode) {
+        var config = Config.of(path, pageSize, maxNrPages);
+        switch (ioMode) {
+            case MEMORY_MAPPED:
+                return new MappedIOController(config);
+            default:
+                return new IOController(config);
+        }
+    }
+
     void init() throws IOException {
         fileChannel = FileChannel.open(config.path(), READ, WRITE);
     }
 
+    void close() throws IOException {
+        fileChannel.close();
+    }
+
+    void force() throws IOException {
+        fileChannel.force(false);
+    }
+
+    int nrOfPages() throws IOException {
+        return (int) ((fileChannel.size() + config.pageSize() - 1) / config.pageSize());
+    }
+
+    /**
+     * Cuts off pages from the end of the heap file.
+     */
+    void truncate(int nrOfPages) throws IOException {
+        fileChannel.truncate(calcPosition(nrOfPages));
+    }
+
     Config config() {
         return config;
     }
 
     void write(Page page) {
         try {
-            fileChannel.position((long)page.number() * page.maxSize());
-            fileChannel.write(page.toByteBuffer());
+            fileChannel.write(page.toByteBuffer(), calcPosition(page.number()));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -48,9 +76,8 @@ class IOController {
         }
     }
 
-    private long calcPosition(int pageNo) {
-        long newPosition = pageNo * config.pageSize();
-        return newPosition < 0 ? 1 : newPosition;
+    long calcPosition(int pageNo) {
+        return (long) pageNo * config.pageSize();
     }
 
     static class Config {
@@ -65,6 +92,9 @@ class IOController {
         }
 
         public static Config of(Path path, int pageSize, int maxNrPages) {
+            if (pageSize > Page.MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("Page size can't exceed " + Page.MAX_PAGE_SIZE + " bytes.");
+            }
             return new Config(path, pageSize, maxNrPages);
         }
 
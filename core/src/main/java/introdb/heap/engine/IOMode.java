@@ -0,0 +1,17 @@
+package introdb.heap.engine;
+
+/**
+ * How engine reads and writes pages of the heap file.
+ */
+public enum IOMode {
+
+    /**
+     * Every page is read into a new buffer and written back with positional FileChannel calls.
+     */
+    FILE_CHANNEL,
+
+    /**
+     * Heap file is mapped into memory in fixed size segments, pages are slices of the mapping.
+     */
+    MEMORY_MAPPED
+}
@@ -0,0 +1,81 @@
+package introdb.heap.engine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.function.IntPredicate;
+
+/**
+ * Mapping between key and page number, persisted next to the heap file.
+ *
+ * Index may keep only hashes of keys, then it knows candidate pages of a key and asks
+ * caller which of them holds the key. Keys which are not in the store can be reported
+ * as being in a page, callers always look for the key in the page.
+ */
+interface Index {
+
+    /**
+     * Creates index chosen by options. Index file of the other kind is deleted,
+     * as it would be stale once the store is modified.
+     */
+    static Index of(Path heapFilePath, Options options) throws IOException {
+        if (options.offHeapIndex()) {
+            if (options.orderedIndex()) {
+                throw new IllegalArgumentException("Off heap index doesn't keep keys, it can't be ordered.");
+            }
+            Files.deleteIfExists(HashIndex.path(heapFilePath));
+            return OffHeapIndex.of(heapFilePath);
+        }
+        Files.deleteIfExists(OffHeapIndex.path(heapFilePath));
+        return HashIndex.of(heapFilePath, options.orderedIndex());
+    }
+
+    /**
+     * @return false when index file is missing and index has to be rebuilt from heap pages
+     */
+    boolean exists() throws IOException;
+
+    void load() throws IOException;
+
+    /**
+     * @param holdsKey tells whether page holds the key, asked only when there is more than one candidate page
+     * @return page number, or -1 when key isn't in index
+     */
+    int get(byte[] key, IntPredicate holdsKey);
+
+    /**
+     * Adds key which was put into page, key has to be removed from its previous page first.
+     */
+    void put(byte[] key, int pageNo);
+
+    /**
+     * Adds key found in heap page while index is rebuilt.
+     */
+    void restore(byte[] key, int pageNo);
+
+    /**
+     * Moves key from one page to another at once, so readers always find the key.
+     */
+    void move(byte[] key, int fromPageNo, int toPageNo);
+
+    void remove(byte[] key, int pageNo);
+
+    /**
+     * Iterates keys in ascending order, iterator reflects changes made meanwhile.
+     *
+     * @param from first key (inclusive), null for no lower bound
+     * @param to   last key (exclusive), null for no upper bound
+     * @throws UnsupportedOperationException when index is not ordered
+     */
+    Iterator<byte[]> keys(byte[] from, byte[] to);
+
+    int size();
+
+    /**
+     * Persists index, called when all pages are flushed.
+     */
+    void checkpoint() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,40 @@
+package introdb.heap.engine;
+
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Least recently used eviction, pages are kept in access order.
+ */
+class LruEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashSet<Integer> pages = new LinkedHashSet<>();
+
+    @Override
+    public synchronized void onInsert(int pageNo) {
+        pages.remove(pageNo);
+        pages.add(pageNo);
+    }
+
+    @Override
+    public synchronized void onAccess(int pageNo) {
+        if (pages.remove(pageNo)) {
+            pages.add(pageNo);
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(int pageNo) {
+        pages.remove(pageNo);
+    }
+
+    @Override
+    public synchronized int victim(IntPredicate evictable) {
+        for (int pageNo : pages) {
+            if (evictable.test(pageNo)) {
+                return pageNo;
+            }
+        }
+        return -1;
+    }
+}
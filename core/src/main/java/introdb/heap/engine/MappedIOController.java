@@ -0,0 +1,137 @@
+package introdb.heap.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+/**
+ * IO controller backed by memory mapped heap file.
+ *
+ * File is mapped lazily in segments (at most 64MB, always whole pages), so heap files
+ * larger than 2GB (max size of single mapping) are supported. Pages read from the file
+ * are slices of the mapping, no data is copied while reading. Segments table is sized
+ * for max number of pages and grows when heap file outgrows it.
+ *
+ * Mapping a segment extends the file to the end of the segment, so on close the file is
+ * truncated back to the last written page.
+ */
+class MappedIOController extends IOController {
+
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final int pagesPerSegment;
+    // replaced by larger copy under lock
+    private volatile AtomicReferenceArray<MappedByteBuffer> segments;
+    private final AtomicInteger nrOfPages = new AtomicInteger();
+
+    MappedIOController(Config config) {
+        super(config);
+        this.pagesPerSegment = Math.max(1, MAX_SEGMENT_SIZE / config.pageSize());
+        this.segments = new AtomicReferenceArray<>(config.MaxNrPages() / pagesPerSegment + 1);
+    }
+
+    @Override
+    void init() throws IOException {
+        super.init();
+        nrOfPages.set(super.nrOfPages());
+        // skip empty pages left at the end of the last mapped segment
+        while (nrOfPages.get() > 0 && isEmpty(nrOfPages.get() - 1)) {
+            nrOfPages.decrementAndGet();
+        }
+    }
+
+    @Override
+    void close() throws IOException {
+        force();
+        fileChannel.truncate(calcPosition(nrOfPages.get()));
+        super.close();
+    }
+
+    @Override
+    void truncate(int nrOfPages) {
+        // mapped file can't shrink, truncated pages are cleared, so they are not found after crash,
+        // and file is truncated on close
+        var empty = ByteBuffer.allocate(config().pageSize());
+        for (int pageNo = nrOfPages; pageNo < this.nrOfPages.get(); pageNo++) {
+            slice(pageNo).put(empty.clear());
+        }
+        this.nrOfPages.set(nrOfPages);
+    }
+
+    @Override
+    void force() {
+        var segments = this.segments;
+        for (int i = 0; i < segments.length(); i++) {
+            var segment = segments.get(i);
+            if (segment != null) {
+                segment.force();
+            }
+        }
+    }
+
+    @Override
+    int nrOfPages() {
+        return nrOfPages.get();
+    }
+
+    @Override
+    void write(Page page) {
+        var slice = slice(page.number());
+        slice.put(page.toByteBuffer());
+        nrOfPages.accumulateAndGet(page.number() + 1, Math::max);
+    }
+
+    @Override
+    public Page findPage(int no) {
+        return Page.of(no, config().pageSize(), slice(no));
+    }
+
+    private boolean isEmpty(int pageNo) {
+        return findPage(pageNo).isEmpty();
+    }
+
+    private ByteBuffer slice(int pageNo) {
+        var segment = segment(pageNo / pagesPerSegment);
+        var offset = (pageNo % pagesPerSegment) * config().pageSize();
+        return segment.duplicate()
+                .position(offset)
+                .limit(offset + config().pageSize())
+                .slice();
+    }
+
+    private MappedByteBuffer segment(int segmentNo) {
+        var segments = this.segments;
+        var segment = segmentNo < segments.length() ? segments.get(segmentNo) : null;
+        if (segment == null) {
+            synchronized (this) {
+                segments = this.segments;
+                if (segmentNo >= segments.length()) {
+                    var grown = new AtomicReferenceArray<MappedByteBuffer>(Math.max(segmentNo + 1, segments.length() * 2));
+                    for (int i = 0; i < segments.length(); i++) {
+                        grown.set(i, segments.get(i));
+                    }
+                    this.segments = segments = grown;
+                }
+                segment = segments.get(segmentNo);
+                if (segment == null) {
+                    segment = map(segmentNo);
+                    segments.set(segmentNo, segment);
+                }
+            }
+        }
+        return segment;
+    }
+
+    private MappedByteBuffer map(int segmentNo) {
+        try {
+            var segmentSize = (long) pagesPerSegment * config().pageSize();
+            return fileChannel.map(READ_WRITE, segmentNo * segmentSize, segmentSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
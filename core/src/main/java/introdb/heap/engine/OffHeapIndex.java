@@ -0,0 +1,346 @@
+package introdb.heap.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntPredicate;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Index keeping 64 bit hashes of keys and page numbers in native memory, outside of java heap,
+ * so it costs about 16 bytes per key and garbage collector doesn't see it.
+ *
+ * Index is split into segments by top bits of hash, every segment is an open addressing table
+ * with linear probing, guarded by its own stamped lock and resized on its own. Lookups run
+ * optimistically without locking, writers of different segments don't contend. Slot is
+ * [hash (long)][page number + 1 (int)], 0 marks empty slot. Removed slot is filled by shifting
+ * following slots of its probe chain back, so there are no tombstones.
+ *
+ * Keys are not stored, keys with the same hash have their own slots and page holding the key
+ * is chosen by caller. Key found on more than one page while index is rebuilt gets slot for every page.
+ *
+ * Index is written on checkpoint as [hash (long)][page number (int)] entries.
+ */
+class OffHeapIndex implements Index {
+
+    static final String SUFFIX = ".hidx";
+
+    private static final int SLOT_SIZE = 12;
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int[] NO_PAGES = new int[0];
+
+    private final Path path;
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    private OffHeapIndex(Path path) {
+        this.path = path;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    static OffHeapIndex of(Path heapFilePath) {
+        return new OffHeapIndex(path(heapFilePath));
+    }
+
+    static Path path(Path heapFilePath) {
+        return heapFilePath.resolveSibling(heapFilePath.getFileName() + SUFFIX);
+    }
+
+    @Override
+    public boolean exists() throws IOException {
+        return Files.exists(path) && Files.size(path) > 0;
+    }
+
+    @Override
+    public void load() throws IOException {
+        if (!exists()) {
+            return;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+            for (;;) {
+                long hash;
+                try {
+                    hash = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                segmentOf(hash).add(hash, in.readInt());
+            }
+        }
+    }
+
+    @Override
+    public int get(byte[] key, IntPredicate holdsKey) {
+        var hash = hash(key);
+        var pages = segmentOf(hash).find(hash);
+        if (pages.length <= 1) {
+            return pages.length == 0 ? -1 : pages[0];
+        }
+        for (int pageNo : pages) {
+            if (holdsKey.test(pageNo)) {
+                return pageNo;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void put(byte[] key, int pageNo) {
+        var hash = hash(key);
+        segmentOf(hash).add(hash, pageNo);
+    }
+
+    @Override
+    public void restore(byte[] key, int pageNo) {
+        put(key, pageNo);
+    }
+
+    @Override
+    public void move(byte[] key, int fromPageNo, int toPageNo) {
+        var hash = hash(key);
+        segmentOf(hash).replace(hash, fromPageNo, toPageNo);
+    }
+
+    @Override
+    public void remove(byte[] key, int pageNo) {
+        var hash = hash(key);
+        segmentOf(hash).remove(hash, pageNo);
+    }
+
+    @Override
+    public Iterator<byte[]> keys(byte[] from, byte[] to) {
+        throw new UnsupportedOperationException("Off heap index doesn't keep keys.");
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (var segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var file = new FileOutputStream(tmp.toFile());
+             var out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE))) {
+            for (var segment : segments) {
+                segment.write(out);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /**
+     * Index is written by checkpoint before engine is closed, native memory is freed with the index.
+     */
+    @Override
+    public void close() {
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    /**
+     * FNV-1a with murmur3 finalizer, so both top bits (segment) and low bits (slot) are well spread.
+     */
+    static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static class Segment {
+
+        private final StampedLock lock = new StampedLock();
+        private ByteBuffer table = ByteBuffer.allocateDirect(INITIAL_CAPACITY * SLOT_SIZE);
+        private int mask = INITIAL_CAPACITY - 1;
+        private int size;
+
+        /**
+         * @return pages of all slots with given hash
+         */
+        int[] find(long hash) {
+            var stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    var pages = probe(hash);
+                    if (lock.validate(stamp)) {
+                        return pages;
+                    }
+                } catch (RuntimeException e) {
+                    // table resized meanwhile, repeat under lock
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return probe(hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void add(long hash, int pageNo) {
+            var stamp = lock.writeLock();
+            try {
+                if ((size + 1) * 4L > (mask + 1) * 3L) {
+                    resize();
+                }
+                insert(table, mask, hash, pageNo);
+                size++;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void replace(long hash, int fromPageNo, int toPageNo) {
+            var stamp = lock.writeLock();
+            try {
+                var slot = slotOf(hash, fromPageNo);
+                if (slot >= 0) {
+                    table.putInt(slot * SLOT_SIZE + 8, toPageNo + 1);
+                    return;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            add(hash, toPageNo);
+        }
+
+        void remove(long hash, int pageNo) {
+            var stamp = lock.writeLock();
+            try {
+                var slot = slotOf(hash, pageNo);
+                if (slot < 0) {
+                    return;
+                }
+                // shift back following slots which would be unreachable over the empty slot
+                for (int next = (slot + 1) & mask; page(table, next) != 0; next = (next + 1) & mask) {
+                    var home = (int) table.getLong(next * SLOT_SIZE) & mask;
+                    if (((next - home) & mask) >= ((next - slot) & mask)) {
+                        copySlot(next, slot);
+                        slot = next;
+                    }
+                }
+                table.putLong(slot * SLOT_SIZE, 0);
+                table.putInt(slot * SLOT_SIZE + 8, 0);
+                size--;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            var stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            var stamp = lock.readLock();
+            try {
+                for (int slot = 0; slot <= mask; slot++) {
+                    var page = page(table, slot);
+                    if (page != 0) {
+                        out.writeLong(table.getLong(slot * SLOT_SIZE));
+                        out.writeInt(page - 1);
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private int[] probe(long hash) {
+            // table and mask can change together, when read without lock
+            var table = this.table;
+            var mask = this.mask;
+            var pages = NO_PAGES;
+            var slot = (int) hash & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                var page = page(table, slot);
+                if (page == 0) {
+                    break;
+                }
+                if (table.getLong(slot * SLOT_SIZE) == hash) {
+                    pages = Arrays.copyOf(pages, pages.length + 1);
+                    pages[pages.length - 1] = page - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return pages;
+        }
+
+        private int slotOf(long hash, int pageNo) {
+            for (int slot = (int) hash & mask; page(table, slot) != 0; slot = (slot + 1) & mask) {
+                if (table.getLong(slot * SLOT_SIZE) == hash && page(table, slot) == pageNo + 1) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private void resize() {
+            var oldTable = table;
+            var oldMask = mask;
+            var newMask = (oldMask + 1) * 2 - 1;
+            var newTable = ByteBuffer.allocateDirect((newMask + 1) * SLOT_SIZE);
+            for (int slot = 0; slot <= oldMask; slot++) {
+                var page = page(oldTable, slot);
+                if (page != 0) {
+                    insert(newTable, newMask, oldTable.getLong(slot * SLOT_SIZE), page - 1);
+                }
+            }
+            table = newTable;
+            mask = newMask;
+        }
+
+        private void copySlot(int from, int to) {
+            table.putLong(to * SLOT_SIZE, table.getLong(from * SLOT_SIZE));
+            table.putInt(to * SLOT_SIZE + 8, page(table, from));
+        }
+
+        private static void insert(ByteBuffer table, int mask, long hash, int pageNo) {
+            var slot = (int) hash & mask;
+            while (page(table, slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table.putLong(slot * SLOT_SIZE, hash);
+            table.putInt(slot * SLOT_SIZE + 8, pageNo + 1);
+        }
+
+        private static int page(ByteBuffer table, int slot) {
+            return table.getInt(slot * SLOT_SIZE + 8);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package introdb.heap.engine;
+
+import java.util.function.Supplier;
+
+/**
+ * Engine tuning options, immutable, every with* method returns a modified copy.
+ */
+public class Options implements Cloneable {
+
+    private int cacheSize = 1024;
+    private Supplier<EvictionPolicy> evictionPolicy = EvictionPolicy::clock;
+    private IOMode ioMode = IOMode.FILE_CHANNEL;
+    private SyncPolicy syncPolicy = SyncPolicy.EVERY_COMMIT;
+    private long syncInterval = 100;
+    private long maxLogSize = 64 * 1024 * 1024;
+    private long compactionInterval = 60_000;
+    private int compactionRate = 100;
+    private int shards = 1;
+    private int tailPages = 1;
+    private Compression compression = Compression.none();
+    private boolean orderedIndex;
+    private boolean offHeapIndex;
+    private int bloomFilterBitsPerKey;
+
+    private Options() {
+    }
+
+    public static Options defaults() {
+        return new Options();
+    }
+
+    /**
+     * @param cacheSize max number of pages kept in page cache
+     */
+    public Options withCacheSize(int cacheSize) {
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("Cache size has to be positive.");
+        }
+        var options = copy();
+        options.cacheSize = cacheSize;
+        return options;
+    }
+
+    /**
+     * @param evictionPolicy creates eviction policy for page cache, e.g. EvictionPolicy::lru
+     */
+    public Options withEvictionPolicy(Supplier<EvictionPolicy> evictionPolicy) {
+        var options = copy();
+        options.evictionPolicy = evictionPolicy;
+        return options;
+    }
+
+    public Options withIOMode(IOMode ioMode) {
+        var options = copy();
+        options.ioMode = ioMode;
+        return options;
+    }
+
+    public Options withSyncPolicy(SyncPolicy syncPolicy) {
+        var options = copy();
+        options.syncPolicy = syncPolicy;
+        return options;
+    }
+
+    /**
+     * @param syncInterval how often (in milliseconds) log is forced with {@link SyncPolicy#INTERVAL}
+     */
+    public Options withSyncInterval(long syncInterval) {
+        if (syncInterval < 1) {
+            throw new IllegalArgumentException("Sync interval has to be positive.");
+        }
+        var options = copy();
+        options.syncInterval = syncInterval;
+        return options;
+    }
+
+    /**
+     * @param maxLogSize size of write ahead log (in bytes) which triggers checkpoint
+     */
+    public Options withMaxLogSize(long maxLogSize) {
+        var options = copy();
+        options.maxLogSize = maxLogSize;
+        return options;
+    }
+
+    /**
+     * @param compactionInterval delay (in milliseconds) between background compactions, 0 disables them
+     */
+    public Options withCompactionInterval(long compactionInterval) {
+        if (compactionInterval < 0) {
+            throw new IllegalArgumentException("Compaction interval can't be negative.");
+        }
+        var options = copy();
+        options.compactionInterval = compactionInterval;
+        return options;
+    }
+
+    /**
+     * @param compactionRate max number of pages per second rewritten by background compaction
+     */
+    public Options withCompactionRate(int compactionRate) {
+        if (compactionRate < 1) {
+            throw new IllegalArgumentException("Compaction rate has to be positive.");
+        }
+        var options = copy();
+        options.compactionRate = compactionRate;
+        return options;
+    }
+
+    /**
+     * @param shards number of heap files keys are partitioned across, see {@link ShardedEngine}
+     */
+    public Options withShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of shards has to be positive.");
+        }
+        var options = copy();
+        options.shards = shards;
+        return options;
+    }
+
+    /**
+     * @param tailPages number of pages concurrent writers append new records to, writer threads
+     *                  are spread over them, so they don't contend on one page
+     */
+    public Options withTailPages(int tailPages) {
+        if (tailPages < 1) {
+            throw new IllegalArgumentException("Number of tail pages has to be positive.");
+        }
+        var options = copy();
+        options.tailPages = tailPages;
+        return options;
+    }
+
+    /**
+     * @param compression compression of values written from now on, see {@link Compression}
+     */
+    public Options withCompression(Compression compression) {
+        var options = copy();
+        options.compression = compression;
+        return options;
+    }
+
+    /**
+     * @param orderedIndex whether keys are kept sorted in memory as well, so key ranges can be scanned
+     */
+    public Options withOrderedIndex(boolean orderedIndex) {
+        var options = copy();
+        options.orderedIndex = orderedIndex;
+        return options;
+    }
+
+    /**
+     * @param offHeapIndex whether index keeps only hashes of keys in native memory, see {@link OffHeapIndex},
+     *                     it can't be ordered
+     */
+    public Options withOffHeapIndex(boolean offHeapIndex) {
+        var options = copy();
+        options.offHeapIndex = offHeapIndex;
+        return options;
+    }
+
+    /**
+     * @param bitsPerKey size of Bloom filters telling which pages can't hold a key, see {@link BloomFilters},
+     *                   0 disables them
+     */
+    public Options withBloomFilter(int bitsPerKey) {
+        if (bitsPerKey < 0) {
+            throw new IllegalArgumentException("Bits per key can't be negative.");
+        }
+        var options = copy();
+        options.bloomFilterBitsPerKey = bitsPerKey;
+        return options;
+    }
+
+    int cacheSize() {
+        return cacheSize;
+    }
+
+    EvictionPolicy evictionPolicy() {
+        return evictionPolicy.get();
+    }
+
+    IOMode ioMode() {
+        return ioMode;
+    }
+
+    SyncPolicy syncPolicy() {
+        return syncPolicy;
+    }
+
+    long syncInterval() {
+        return syncInterval;
+    }
+
+    long maxLogSize() {
+        return maxLogSize;
+    }
+
+    long compactionInterval() {
+        return compactionInterval;
+    }
+
+    int compactionRate() {
+        return compactionRate;
+    }
+
+    int shards() {
+        return shards;
+    }
+
+    int tailPages() {
+        return tailPages;
+    }
+
+    Compression compression() {
+        return compression;
+    }
+
+    boolean orderedIndex() {
+        return orderedIndex;
+    }
+
+    boolean offHeapIndex() {
+        return offHeapIndex;
+    }
+
+    int bloomFilterBitsPerKey() {
+        return bloomFilterBitsPerKey;
+    }
+
+    private Options copy() {
+        try {
+            return (Options) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -1,64 +1,297 @@
 package introdb.heap.engine;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+/**
+ * Slotted page.
+ *
+ * Page layout:
+ * [header][slot 0][slot 1]...[slot n] -> free space <- [record n]...[record 1][record 0]
+ *
+ * Header is [nr of slots (short)][free space end (short)][deleted bytes (short)][flags (short)],
+ * every slot is [record offset (short)][record size (short)], all shorts are unsigned.
+ * Slot directory grows from the beginning of the page and records grow from the end of the page.
+ * Deleted record leaves empty slot (offset 0), which is reused by the next record, its space
+ * is counted as deleted bytes and reclaimed by in-page compaction when contiguous free space
+ * is too small for a new record. Page flags tell whether page is an overflow page, compressed
+ * values are marked in headers of their records.
+ *
+ * Values too large for a page are stored in chains of overflow pages, overflow page has no slots
+ * and no free space, it is [header][chain id (long)][next page (int)][chunk size (int)][chunk],
+ * next page is -1 in the last page of the chain. Chain id lets readers detect that the chain
+ * was freed and its pages reused meanwhile.
+ *
+ * Page is guarded by stamped lock, lookups by key run optimistically without locking
+ * and are repeated under read lock only when page was modified meanwhile.
+ *
+ * Page keeps in memory one byte fingerprint of the key for every slot, lookups compare
+ * fingerprints first and full keys only when fingerprints match. Fingerprints are not stored
+ * in the page, they are computed when page is read.
+ */
 class Page {
 
+    static final int HEADER_SIZE = 8;
+    static final int SLOT_SIZE = 4;
+
+    // max page size addressable with unsigned short offsets
+    static final int MAX_PAGE_SIZE = 64 * 1024;
+
+    private static final int NR_OF_SLOTS = 0;
+    private static final int FREE_SPACE_END = 2;
+    private static final int DELETED_BYTES = 4;
+    private static final int FLAGS = 6;
+
+    // flag bits, bit 1 is unused
+    private static final int OVERFLOW = 2;
+
+    // overflow page header, after page header
+    private static final int CHAIN_ID = HEADER_SIZE;
+    private static final int NEXT_PAGE = HEADER_SIZE + 8;
+    private static final int CHUNK_SIZE = HEADER_SIZE + 12;
+    private static final int OVERFLOW_HEADER_SIZE = 16;
+
+    // returned by readValue for compressed or overflow value, which has to be decoded by caller
+    static final int ENCODED = -2;
+
+    // returned by readOverflow when page isn't part of the chain anymore
+    static final int NOT_IN_CHAIN = -2;
+
     private final int number;
     private final int maxSize;
-    private final CopyOnWriteArrayList<Record> records = new CopyOnWriteArrayList<>();
+    private final ByteBuffer data;
+    private final StampedLock lock = new StampedLock();
+
+    // number of empty slots, not stored in header as it is cheap to count while reading page
+    private int emptySlots;
 
-    Page(int number, int maxSize) {
+    // key fingerprint of every slot, array is replaced when it grows
+    private byte[] fingerprints = new byte[0];
+
+    private Page(int number, int maxSize, ByteBuffer data) {
         this.number = number;
         this.maxSize = maxSize;
+        this.data = data;
     }
 
     static Page of(int number, int maxSize) {
-        var page = new Page(number, maxSize);
+        var page = new Page(number, maxSize, ByteBuffer.allocate(maxSize));
+        page.setFreeSpaceEnd(maxSize);
         return page;
     }
 
     static Page of(int number, int maxSize, Record record) {
-        var page = new Page(number, maxSize);
+        var page = of(number, maxSize);
         page.addRecord(record);
         return page;
     }
 
+    /**
+     * Page over given buffer, changes of the page are made directly in the buffer.
+     */
     static Page of(int number, int maxSize, ByteBuffer byteBuffer) {
-        var page = new Page(number, maxSize);
-        var pageOffset = 0;
-
-        while (Record.exists(byteBuffer, pageOffset)) {
-            var record = Record.of(byteBuffer, pageOffset);
-            page.addRecord(record);
-            pageOffset += record.size();
+        var page = new Page(number, maxSize, byteBuffer);
+        if (page.isOverflow()) {
+            return page;
+        }
+        page.fingerprints = new byte[page.nrOfSlots()];
+        for (int slot = 0; slot < page.nrOfSlots(); slot++) {
+            if (page.recordOffset(slot) == 0) {
+                page.emptySlots++;
+            } else {
+                page.fingerprints[slot] = page.recordAt(slot).fingerprint();
+            }
         }
-
         return page;
     }
 
-    // this need to be synchronized -> critical section!
-    synchronized boolean addRecord(Record record) {
-        if (!willFit(record)) {
+    /**
+     * @return max size of record which fits into empty page
+     */
+    static int maxRecordSize(int pageSize) {
+        return pageSize - HEADER_SIZE - SLOT_SIZE;
+    }
+
+    /**
+     * @return number of value bytes stored in one overflow page
+     */
+    static int overflowCapacity(int pageSize) {
+        return pageSize - HEADER_SIZE - OVERFLOW_HEADER_SIZE;
+    }
+
+    boolean addRecord(Record record) {
+        var stamp = lock.writeLock();
+        try {
+            return add(record);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private boolean add(Record record) {
+        if (!fits(record)) {
             return false;
         }
 
-        return this.records.add(record);
+        var required = record.size() + (emptySlots > 0 ? 0 : SLOT_SIZE);
+        if (contiguousFreeSpace() < required) {
+            compact();
+        }
+
+        int slot;
+        if (emptySlots > 0) {
+            slot = findEmptySlot();
+            emptySlots--;
+        } else {
+            slot = nrOfSlots();
+            setNrOfSlots(slot + 1);
+        }
+
+        var offset = freeSpaceEnd() - record.size();
+        record.append(data.duplicate().position(offset));
+        setFreeSpaceEnd(offset);
+        setSlot(slot, offset, record.size());
+        setFingerprint(slot, record.fingerprint());
+        return true;
     }
 
-    ByteBuffer toByteBuffer() {
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(maxSize);
-        records.stream()
-                .forEach(record -> record.append(byteBuffer));
+    /**
+     * Removes record with given key.
+     *
+     * @return copy of removed record, or null when there was no such record
+     */
+    Record removeRecord(byte[] key) {
+        var stamp = lock.writeLock();
+        try {
+            var slot = findSlot(key);
+            if (slot < 0) {
+                return null;
+            }
+            var record = recordAt(slot).copy();
+            setDeletedBytes(deletedBytes() + recordSize(slot));
+            setSlot(slot, 0, 0);
+            emptySlots++;
+            return record;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
 
-        return byteBuffer.rewind();
+    /**
+     * Reclaims space of deleted records, so all free space is contiguous.
+     *
+     * @return true when page was modified
+     */
+    boolean vacuum() {
+        var stamp = lock.writeLock();
+        try {
+            if (deletedBytes() == 0) {
+                return false;
+            }
+            compact();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Turns empty page into overflow page with chunk of bytes starting at offset.
+     *
+     * @return false when page is not empty
+     */
+    boolean writeOverflow(long chainId, int nextPageNo, byte[] bytes, int offset) {
+        var stamp = lock.writeLock();
+        try {
+            if (nrOfSlots() != emptySlots || isOverflow()) {
+                return false;
+            }
+            var chunkSize = Math.min(overflowCapacity(maxSize), bytes.length - offset);
+            setNrOfSlots(0);
+            setFreeSpaceEnd(HEADER_SIZE);
+            setDeletedBytes(0);
+            setFlags(OVERFLOW);
+            emptySlots = 0;
+            data.putLong(CHAIN_ID, chainId);
+            data.putInt(NEXT_PAGE, nextPageNo);
+            data.putInt(CHUNK_SIZE, chunkSize);
+            data.duplicate().position(HEADER_SIZE + OVERFLOW_HEADER_SIZE).put(bytes, offset, chunkSize);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies chunk of overflow chain with given id into target.
+     *
+     * @return next page of the chain, -1 for last page, or {@link #NOT_IN_CHAIN}
+     */
+    int readOverflow(long chainId, ByteBuffer target) {
+        var start = target.position();
+        return optimisticRead(() -> {
+            target.position(start);
+            if (!isOverflow() || data.getLong(CHAIN_ID) != chainId) {
+                return NOT_IN_CHAIN;
+            }
+            var chunkSize = data.getInt(CHUNK_SIZE);
+            if (chunkSize > target.remaining()) {
+                return NOT_IN_CHAIN;
+            }
+            target.put(data.duplicate()
+                    .limit(HEADER_SIZE + OVERFLOW_HEADER_SIZE + chunkSize)
+                    .position(HEADER_SIZE + OVERFLOW_HEADER_SIZE));
+            return data.getInt(NEXT_PAGE);
+        });
+    }
+
+    /**
+     * Turns overflow page back into empty page.
+     *
+     * @return next page of the chain, -1 for last page, or {@link #NOT_IN_CHAIN}
+     */
+    int freeOverflow(long chainId) {
+        var stamp = lock.writeLock();
+        try {
+            if (!isOverflow() || data.getLong(CHAIN_ID) != chainId) {
+                return NOT_IN_CHAIN;
+            }
+            var next = data.getInt(NEXT_PAGE);
+            setNrOfSlots(0);
+            setFreeSpaceEnd(maxSize);
+            setDeletedBytes(0);
+            setFlags(0);
+            emptySlots = 0;
+            return next;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return id of chain of overflow page, or {@link #NOT_IN_CHAIN} when page isn't overflow page
+     */
+    long overflowChainId() {
+        return read(() -> isOverflow() ? data.getLong(CHAIN_ID) : NOT_IN_CHAIN);
+    }
+
+    /**
+     * @return copy of page content, which is safe to write while page is modified
+     */
+    ByteBuffer toByteBuffer() {
+        return read(() -> ByteBuffer.allocateDirect(maxSize)
+                .put(data.duplicate().clear())
+                .rewind());
     }
 
+    /**
+     * @return number of bytes used by live records and their slots
+     */
     int size() {
-        return records.stream()
-                .mapToInt(Record::size)
-                .sum();
+        return maxSize - freeSpace() - HEADER_SIZE;
     }
 
     int maxSize() {
@@ -69,21 +302,224 @@ class Page {
         return number;
     }
 
+    /**
+     * @return true when page has no records and is not an overflow page
+     */
+    boolean isEmpty() {
+        return read(() -> nrOfSlots() == emptySlots && !isOverflow());
+    }
+
+    /**
+     * Calls consumer with every live record, records are valid only during the call.
+     */
+    void forEachRecord(Consumer<Record> consumer) {
+        read(() -> {
+            for (int slot = 0; slot < nrOfSlots(); slot++) {
+                if (recordOffset(slot) != 0) {
+                    consumer.accept(recordAt(slot));
+                }
+            }
+            return null;
+        });
+    }
+
     boolean willFit(Record record) {
-        return (maxSize - size()) > record.size();
+        return read(() -> fits(record));
     }
 
     boolean contains(byte[] key) {
-        return records.stream()
-                .anyMatch(it -> it.equalsKey(key) && !it.isDeleted());
+        return optimisticRead(() -> findSlot(key) >= 0);
     }
 
+    /**
+     * @return copy of record with given key, or null when there is no such record
+     */
     Record getRecord(byte[] key) {
-        for (Record record : records) {
-            if (record.equalsKey(key) && !record.isDeleted()) {
-                return record;
+        return optimisticRead(() -> {
+            var slot = findSlot(key);
+            return slot < 0 ? null : recordAt(slot).copy();
+        });
+    }
+
+    /**
+     * Copies value of record with given key into target, when it has enough space remaining.
+     *
+     * Compressed and overflow values are never copied.
+     *
+     * @return size of value, -1 when there is no such record or {@link #ENCODED} for value which has to be decoded
+     */
+    int readValue(byte[] key, ByteBuffer target) {
+        var start = target.position();
+        return optimisticRead(() -> {
+            // optimistic attempt could write into target before it failed
+            target.position(start);
+            var slot = findSlot(key);
+            if (slot < 0) {
+                return -1;
             }
+            var record = recordAt(slot);
+            if (record.isCompressed() || record.isOverflow()) {
+                return ENCODED;
+            }
+            if (record.valueSize() <= target.remaining()) {
+                record.copyValueTo(target);
+            }
+            return record.valueSize();
+        });
+    }
+
+    private boolean fits(Record record) {
+        return free() >= record.size() + (emptySlots > 0 ? 0 : SLOT_SIZE);
+    }
+
+    private <T> T read(Supplier<T> reader) {
+        var stamp = lock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Runs reader without locking, result is used only when page wasn't modified meanwhile,
+     * otherwise reader is repeated under read lock.
+     */
+    private <T> T optimisticRead(Supplier<T> reader) {
+        var stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                var result = reader.get();
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                // inconsistent state seen during modification, repeat under lock
+            }
+        }
+        return read(reader);
+    }
+
+    private int findSlot(byte[] key) {
+        var fingerprint = Record.fingerprint(key);
+        // array read once, optimistic reader could see it replaced
+        var fingerprints = this.fingerprints;
+        for (int slot = 0; slot < nrOfSlots(); slot++) {
+            if (fingerprints[slot] == fingerprint && recordOffset(slot) != 0 && recordAt(slot).equalsKey(key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void setFingerprint(int slot, byte fingerprint) {
+        if (slot >= fingerprints.length) {
+            fingerprints = Arrays.copyOf(fingerprints, Math.max(slot + 1, fingerprints.length * 2));
         }
-        return null;
+        fingerprints[slot] = fingerprint;
+    }
+
+    private int findEmptySlot() {
+        for (int slot = 0; slot < nrOfSlots(); slot++) {
+            if (recordOffset(slot) == 0) {
+                return slot;
+            }
+        }
+        throw new IllegalStateException("No empty slot in page " + number);
+    }
+
+    private Record recordAt(int slot) {
+        return Record.of(data, recordOffset(slot));
+    }
+
+    /**
+     * Moves all live records to the end of the page, so all free space is contiguous.
+     */
+    private void compact() {
+        var copy = ByteBuffer.allocate(maxSize).put(data.duplicate().clear());
+        var offset = maxSize;
+        for (int slot = 0; slot < nrOfSlots(); slot++) {
+            var recordOffset = recordOffset(slot);
+            if (recordOffset != 0) {
+                var recordSize = recordSize(slot);
+                offset -= recordSize;
+                data.duplicate()
+                        .position(offset)
+                        .put(copy.duplicate().limit(recordOffset + recordSize).position(recordOffset));
+                setSlot(slot, offset, recordSize);
+            }
+        }
+        setFreeSpaceEnd(offset);
+        setDeletedBytes(0);
+    }
+
+    /**
+     * @return free space in the page, including space of deleted records
+     */
+    int freeSpace() {
+        return read(this::free);
+    }
+
+    private int free() {
+        return contiguousFreeSpace() + deletedBytes();
+    }
+
+    private int contiguousFreeSpace() {
+        return freeSpaceEnd() - HEADER_SIZE - nrOfSlots() * SLOT_SIZE;
+    }
+
+    private int nrOfSlots() {
+        return getUnsignedShort(NR_OF_SLOTS);
+    }
+
+    private void setNrOfSlots(int nrOfSlots) {
+        data.putShort(NR_OF_SLOTS, (short) nrOfSlots);
+    }
+
+    private int freeSpaceEnd() {
+        var freeSpaceEnd = getUnsignedShort(FREE_SPACE_END);
+        // 0 stands for never written page or 64KB, which doesn't fit into unsigned short
+        return freeSpaceEnd == 0 ? maxSize : freeSpaceEnd;
+    }
+
+    private void setFreeSpaceEnd(int freeSpaceEnd) {
+        data.putShort(FREE_SPACE_END, (short) freeSpaceEnd);
+    }
+
+    private int deletedBytes() {
+        return getUnsignedShort(DELETED_BYTES);
+    }
+
+    private void setDeletedBytes(int deletedBytes) {
+        data.putShort(DELETED_BYTES, (short) deletedBytes);
+    }
+
+    private boolean isOverflow() {
+        return (flags() & OVERFLOW) != 0;
+    }
+
+    private int flags() {
+        return getUnsignedShort(FLAGS);
+    }
+
+    private void setFlags(int flags) {
+        data.putShort(FLAGS, (short) flags);
+    }
+
+    private int recordOffset(int slot) {
+        return getUnsignedShort(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int recordSize(int slot) {
+        return getUnsignedShort(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int size) {
+        data.putShort(HEADER_SIZE + slot * SLOT_SIZE, (short) offset);
+        data.putShort(HEADER_SIZE + slot * SLOT_SIZE + 2, (short) size);
+    }
+
+    private int getUnsignedShort(int index) {
+        return Short.toUnsignedInt(data.getShort(index));
     }
 }
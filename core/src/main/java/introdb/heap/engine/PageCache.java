@@ -0,0 +1,186 @@
+package introdb.heap.engine;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache of pages between engine and IO controller.
+ *
+ * Pages are pinned while used, pinned pages are never evicted. Modified pages are marked
+ * as dirty and written back to the heap file when evicted or flushed. When all pages are pinned,
+ * cache grows above its capacity and shrinks back once pages are unpinned.
+ *
+ * Cached pages are pinned and unpinned without locking the map, pin count of frame is
+ * switched to evicted state when it leaves the cache, so frame can't be pinned after that.
+ */
+class PageCache {
+
+    private final IOController ioController;
+    private final EvictionPolicy evictionPolicy;
+    private final int capacity;
+
+    // pin count of frame, which left the cache
+    private static final int EVICTED = -1;
+
+    private final ConcurrentMap<Integer, Frame> frames = new ConcurrentHashMap<>();
+
+    PageCache(IOController ioController, EvictionPolicy evictionPolicy, int capacity) {
+        this.ioController = ioController;
+        this.evictionPolicy = evictionPolicy;
+        this.capacity = capacity;
+    }
+
+    static PageCache of(IOController ioController, Options options) {
+        return new PageCache(ioController, options.evictionPolicy(), options.cacheSize());
+    }
+
+    /**
+     * Returns page, reading it from heap file when it is not cached. Page stays in cache
+     * until it is unpinned.
+     */
+    Page pin(int pageNo) {
+        for (;;) {
+            var frame = frames.get(pageNo);
+            if (frame != null) {
+                if (frame.pin()) {
+                    evictionPolicy.onAccess(pageNo);
+                    return frame.page;
+                }
+                continue; // evicted meanwhile
+            }
+            frame = frames.computeIfAbsent(pageNo, no -> {
+                evictionPolicy.onInsert(no);
+                return new Frame(ioController.findPage(no));
+            });
+            if (frame.pin()) {
+                evictIfFull();
+                return frame.page;
+            }
+        }
+    }
+
+    /**
+     * Puts new page into cache as pinned and dirty, so it will be written to the heap file.
+     */
+    void pin(Page page) {
+        frames.compute(page.number(), (no, current) -> {
+            var frame = new Frame(page);
+            frame.dirty = true;
+            // pins of replaced frame are taken over, it can't be pinned anymore
+            var pins = current == null ? 0 : current.pins.getAndSet(EVICTED);
+            frame.pins.set(Math.max(0, pins) + 1);
+            return frame;
+        });
+        evictionPolicy.onInsert(page.number());
+        evictIfFull();
+    }
+
+    void unpin(Page page, boolean dirty) {
+        // pinned frame isn't evicted
+        var frame = frames.get(page.number());
+        if (frame != null) {
+            if (dirty) {
+                frame.dirty = true;
+            }
+            frame.pins.decrementAndGet();
+        }
+        evictIfFull();
+    }
+
+    void markDirty(Page page) {
+        var frame = frames.get(page.number());
+        if (frame != null) {
+            frame.dirty = true;
+        }
+    }
+
+    /**
+     * Drops unpinned page from cache without writing it, used for pages truncated from the heap file.
+     *
+     * @return false when page is pinned and stays in cache
+     */
+    boolean discard(int pageNo) {
+        var frame = frames.computeIfPresent(pageNo, (no, current) -> {
+            if (!current.pins.compareAndSet(0, EVICTED)) {
+                return current;
+            }
+            evictionPolicy.onRemove(no);
+            return null;
+        });
+        return frame == null;
+    }
+
+    /**
+     * Writes all dirty pages to the heap file.
+     */
+    void flush() {
+        frames.forEach((no, frame) -> frames.computeIfPresent(no, (n, current) -> {
+            writeIfDirty(current);
+            return current;
+        }));
+    }
+
+    int size() {
+        return frames.size();
+    }
+
+    boolean isCached(int pageNo) {
+        return frames.containsKey(pageNo);
+    }
+
+    private void evictIfFull() {
+        while (frames.size() > capacity) {
+            var victim = evictionPolicy.victim(this::isEvictable);
+            if (victim < 0) {
+                return; // everything is pinned
+            }
+            frames.computeIfPresent(victim, (no, frame) -> {
+                if (!frame.pins.compareAndSet(0, EVICTED)) {
+                    return frame;
+                }
+                writeIfDirty(frame);
+                evictionPolicy.onRemove(no);
+                return null;
+            });
+        }
+    }
+
+    private boolean isEvictable(int pageNo) {
+        var frame = frames.get(pageNo);
+        return frame != null && frame.pins.get() == 0;
+    }
+
+    private void writeIfDirty(Frame frame) {
+        if (frame.dirty) {
+            ioController.write(frame.page);
+            frame.dirty = false;
+        }
+    }
+
+    private static class Frame {
+        private final Page page;
+        // number of pins, or EVICTED
+        private final AtomicInteger pins = new AtomicInteger();
+        private volatile boolean dirty;
+
+        private Frame(Page page) {
+            this.page = page;
+        }
+
+        /**
+         * @return false when frame left the cache
+         */
+        private boolean pin() {
+            for (;;) {
+                var pins = this.pins.get();
+                if (pins == EVICTED) {
+                    return false;
+                }
+                if (this.pins.compareAndSet(pins, pins + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
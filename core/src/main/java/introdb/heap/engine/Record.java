@@ -3,82 +3,235 @@ package introdb.heap.engine;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import static introdb.heap.utils.ByteConverterUtils.toBoolean;
-import static introdb.heap.utils.ByteConverterUtils.toByte;
-
+/**
+ * Key value pair stored in a page.
+ *
+ * Records read from page buffer are flyweights, they only keep position of the record
+ * in the buffer. Keys are compared in place and key or value is copied out of the buffer
+ * only when asked for, so reading a page doesn't allocate arrays for every record on it.
+ */
 public class Record {
 
+    // [value size (int)][first page (int)][chain id (long)]
+    private static final int OVERFLOW_POINTER_SIZE = 16;
+
     private final Header header;
     private final byte[] key;
     private final byte[] value;
 
-    private Record(Header header, byte[] key, byte[] value) {
+    // page buffer and record offset, when record was read from page
+    private final ByteBuffer buffer;
+    private final int offset;
+
+    private Record(Header header, byte[] key, byte[] value, ByteBuffer buffer, int offset) {
         this.key = key;
         this.value = value;
         this.header = header;
+        this.buffer = buffer;
+        this.offset = offset;
     }
 
     static Record of(byte[] key, byte[] value, int maxSize) {
-        var header = Header.of(key, value);
-        return assertRecordSize(new Record(header, key, value), maxSize);
+        return assertRecordSize(of(key, value), maxSize);
+    }
+
+    static Record of(byte[] key, byte[] value) {
+        return new Record(Header.of(key.length, value.length, (byte) 0), key, value, null, 0);
+    }
+
+    /**
+     * Record with compressed value, see {@link Compression}.
+     */
+    static Record compressed(byte[] key, byte[] compressedValue, int maxSize) {
+        var header = Header.of(key.length, compressedValue.length, Header.COMPRESSED);
+        return assertRecordSize(new Record(header, key, compressedValue, null, 0), maxSize);
+    }
+
+    /**
+     * Record pointing to value stored in chain of overflow pages, see {@link Page}.
+     *
+     * @param compressed true when stored value is compressed
+     */
+    static Record overflow(byte[] key, int valueSize, int firstPageNo, long chainId, boolean compressed, int maxSize) {
+        var pointer = ByteBuffer.allocate(OVERFLOW_POINTER_SIZE)
+                .putInt(valueSize)
+                .putInt(firstPageNo)
+                .putLong(chainId)
+                .array();
+        var flags = (byte) (Header.OVERFLOW | (compressed ? Header.COMPRESSED : 0));
+        return assertRecordSize(new Record(Header.of(key.length, pointer.length, flags), key, pointer, null, 0), maxSize);
+    }
+
+    /**
+     * Throws exception when key is too large to be stored in a page even with overflow value.
+     */
+    static void assertKeySize(byte[] key, int maxSize) {
+        if (Header.SIZE + key.length + OVERFLOW_POINTER_SIZE > maxSize) {
+            throw new IllegalArgumentException("Record exceed max size of the page.");
+        }
     }
 
     static Record of(ByteBuffer byteBuffer, int offset) {
         var keySize = byteBuffer.getShort(offset);
         var valueSize = byteBuffer.getShort(offset + 2);
-        var deleted = toBoolean(byteBuffer.get(offset+4));
+        var flags = byteBuffer.get(offset + 4);
 
-        var key = new byte[keySize];
-        byteBuffer.position(offset + Header.SIZE).get(key);
+        return new Record(Header.of(Short.toUnsignedInt(keySize), Short.toUnsignedInt(valueSize), flags),
+                null, null, byteBuffer, offset);
+    }
 
-        var value = new byte[valueSize];
-        byteBuffer.position(offset + Header.SIZE + keySize).get(value);
+    public byte[] key() {
+        return key != null ? key : copy(keyOffset(), header.keySize());
+    }
 
-        return new Record(Header.of(keySize, valueSize, deleted), key, value);
+    /**
+     * @return value, copied out of the page buffer on every call for records read from page
+     */
+    public byte[] value() {
+        return value != null ? value : copy(valueOffset(), header.valueSize());
     }
 
-    static boolean exists(ByteBuffer byteBuffer, int offset) {
-        byteBuffer.position(offset);
-        return byteBuffer.getLong() > 0;
+    /**
+     * @return copy of the record, which stays valid when page buffer changes
+     */
+    Record copy() {
+        return buffer == null ? this : new Record(header, key(), value(), null, 0);
     }
 
-    public byte[] key() {
-        return key;
+    /**
+     * @return true when value is stored compressed, value() returns compressed bytes then
+     */
+    boolean isCompressed() {
+        return (header.flags() & Header.COMPRESSED) != 0;
     }
 
-    public byte[] value() {
-        return value;
+    /**
+     * @return true when record points to value in overflow pages, value() returns the pointer then
+     */
+    boolean isOverflow() {
+        return (header.flags() & Header.OVERFLOW) != 0;
+    }
+
+    /**
+     * @return size of value stored in overflow pages
+     */
+    int overflowSize() {
+        return ByteBuffer.wrap(value()).getInt(0);
+    }
+
+    int overflowPageNo() {
+        return ByteBuffer.wrap(value()).getInt(4);
+    }
+
+    long overflowChainId() {
+        return ByteBuffer.wrap(value()).getLong(8);
+    }
+
+    /**
+     * @return record with value read from overflow pages
+     */
+    Record withOverflowValue(byte[] value) {
+        var flags = (byte) (header.flags() & ~Header.OVERFLOW);
+        return new Record(Header.of(header.keySize(), value.length, flags), key(), value, null, 0);
+    }
+
+    int valueSize() {
+        return header.valueSize();
+    }
+
+    /**
+     * Copies value into target buffer, without copying it to an intermediate array.
+     */
+    void copyValueTo(ByteBuffer target) {
+        if (value != null) {
+            target.put(value);
+        } else {
+            target.put(buffer.duplicate()
+                    .limit(valueOffset() + header.valueSize())
+                    .position(valueOffset()));
+        }
     }
 
     public int size() {
-        return key.length + value.length + header.size();
+        return header.keySize() + header.valueSize() + header.size();
     }
 
     Header header() {
         return header;
     }
 
+    /**
+     * @return one byte hash of the key, computed in place for records read from page
+     */
+    byte fingerprint() {
+        if (key != null) {
+            return fingerprint(key);
+        }
+        int hash = 1;
+        var keyOffset = keyOffset();
+        for (int i = 0; i < header.keySize(); i++) {
+            hash = 31 * hash + buffer.get(keyOffset + i);
+        }
+        return mix(hash);
+    }
+
+    static byte fingerprint(byte[] key) {
+        return mix(Arrays.hashCode(key));
+    }
+
+    private static byte mix(int hash) {
+        // fold all bits into the lowest byte, so keys differing only in last byte differ in fingerprint
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        return (byte) (hash ^ hash >>> 8);
+    }
+
     boolean equalsKey(byte[] key) {
-        return Arrays.equals(this.key, key);
+        if (this.key != null) {
+            return Arrays.equals(this.key, key);
+        }
+        if (header.keySize() != key.length) {
+            return false;
+        }
+        var keyOffset = keyOffset();
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(keyOffset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     void append(ByteBuffer byteBuffer) {
         // store headers
-        byteBuffer.putShort(header().keySize());
-        byteBuffer.putShort(header().valueSize());
-        byteBuffer.put(toByte(header().isDeleted()));
+        byteBuffer.putShort((short) header().keySize());
+        byteBuffer.putShort((short) header().valueSize());
+        byteBuffer.put(header().flags());
 
         // store body
-        byteBuffer.put(key());
-        byteBuffer.put(value());
+        if (key != null) {
+            byteBuffer.put(key);
+            byteBuffer.put(value);
+        } else {
+            byteBuffer.put(buffer.duplicate()
+                    .limit(valueOffset() + header.valueSize())
+                    .position(keyOffset()));
+        }
+    }
+
+    private int keyOffset() {
+        return offset + Header.SIZE;
     }
 
-    void delete() {
-        header.delete();
+    private int valueOffset() {
+        return offset + Header.SIZE + header.keySize();
     }
 
-    boolean isDeleted() {
-        return header.isDeleted();
+    private byte[] copy(int from, int length) {
+        var bytes = new byte[length];
+        buffer.duplicate().position(from).get(bytes);
+        return bytes;
     }
 
     private static Record assertRecordSize(Record record, int maxSize) {
@@ -91,42 +244,39 @@ public class Record {
     static class Header {
         static final int SIZE = 5;
 
-        private short keySize;
-        private short valueSize;
-        private boolean deleted;
+        // flag bits
+        static final byte COMPRESSED = 1;
+        static final byte OVERFLOW = 2;
+
+        // sizes are stored as unsigned shorts
+        private final int keySize;
+        private final int valueSize;
+        private final byte flags;
 
-        private Header(short keySize, short valueSize, boolean deleted) {
+        private Header(int keySize, int valueSize, byte flags) {
             this.keySize = keySize;
             this.valueSize = valueSize;
-            this.deleted = deleted;
-        }
-
-        static Header of(byte[] key, byte[] value) {
-            return new Header((short) key.length, (short) value.length, false);
+            this.flags = flags;
         }
 
-        static Header of(short keySize, short valueSize, boolean deleted) {
-            return new Header(keySize, valueSize, deleted);
+        static Header of(int keySize, int valueSize, byte flags) {
+            return new Header(keySize, valueSize, flags);
         }
 
-        short keySize() {
+        int keySize() {
             return keySize;
         }
 
-        short valueSize() {
+        int valueSize() {
             return valueSize;
         }
 
-        boolean isDeleted() {
-            return deleted;
+        byte flags() {
+            return flags;
         }
 
         int size() {
             return SIZE;
         }
-
-        void delete() {
-            deleted = true;
-        }
     }
 }
@@ -0,0 +1,95 @@
+package introdb.heap.engine;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Rebuilds index and free space map by scanning all pages of the heap file,
+ * used when there is no index file.
+ *
+ * Page range is split in halves until it is small enough, so pages are read and parsed
+ * in parallel by fork join pool workers. Scan returns number of the last non empty page.
+ */
+class RecoveryScan {
+
+    private static final Logger LOG = Logger.getLogger(RecoveryScan.class.getName());
+
+    private static final int PAGES_PER_TASK = 256;
+
+    private final IOController ioController;
+    private final Index index;
+    private final FreeSpaceMap freeSpaceMap;
+    private final ForkJoinPool pool;
+
+    RecoveryScan(IOController ioController, Index index, FreeSpaceMap freeSpaceMap, ForkJoinPool pool) {
+        this.ioController = ioController;
+        this.index = index;
+        this.freeSpaceMap = freeSpaceMap;
+        this.pool = pool;
+    }
+
+    static RecoveryScan of(IOController ioController, Index index, FreeSpaceMap freeSpaceMap) {
+        return new RecoveryScan(ioController, index, freeSpaceMap, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @return number of the last non empty page, -1 when all pages are empty
+     */
+    int run(int nrOfPages) {
+        var start = System.nanoTime();
+
+        int lastPageNo = pool.invoke(new ScanTask(0, nrOfPages));
+
+        var elapsed = Math.max(System.nanoTime() - start, 1);
+        LOG.info(format("recovered %d keys from %d pages in %d ms (%.0f pages/sec)",
+                index.size(), nrOfPages, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                nrOfPages * (double) TimeUnit.SECONDS.toNanos(1) / elapsed));
+
+        return lastPageNo;
+    }
+
+    private class ScanTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        ScanTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= PAGES_PER_TASK) {
+                return scan();
+            }
+            var middle = (from + to) >>> 1;
+            var left = new ScanTask(from, middle);
+            var right = new ScanTask(middle, to);
+            left.fork();
+            int rightLastPage = right.compute();
+            int leftLastPage = left.join();
+            return Math.max(leftLastPage, rightLastPage);
+        }
+
+        private int scan() {
+            int lastPageNo = -1;
+            for (int no = from; no < to; no++) {
+                var page = ioController.findPage(no);
+                freeSpaceMap.update(no, page.freeSpace());
+                if (page.isEmpty()) {
+                    continue;
+                }
+                lastPageNo = no;
+                page.forEachRecord(record -> index.restore(record.key(), page.number()));
+            }
+            return lastPageNo;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package introdb.heap.engine;
+
+import introdb.heap.lock.LockManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Engine partitioning keys by hash across independent engines (shards), every shard has
+ * its own heap file, last page, index, write ahead log and locks, so writers of different
+ * shards don't contend with each other.
+ *
+ * Shard files are named after the heap file with shard number suffix, e.g. heap.0, heap.1.
+ * Number of shards can't change once the store is created, it is kept in metadata of the heap file. Batch operations are split
+ * by shard and every shard part is atomic on its own. Shards share one commit sequence,
+ * so snapshots see all shards at the same point. Transactions check conflicts in all
+ * shards before any shard is changed, but every shard logs its part on its own, so after
+ * crash some shard parts of a transaction can be missing.
+ */
+public class ShardedEngine implements StorageEngine {
+
+    private final Engine[] shards;
+    private final CommitSequence commits;
+
+    private ShardedEngine(Engine[] shards, CommitSequence commits) {
+        this.shards = shards;
+        this.commits = commits;
+    }
+
+    public static ShardedEngine of(Path path, int maxNrPages, int pageSize, Options options) throws IOException {
+        var nrOfShards = options.shards();
+        var shardOptions = options.withCacheSize(Math.max(1, options.cacheSize() / nrOfShards));
+        var shards = new Engine[nrOfShards];
+        var commits = CommitSequence.of();
+        // keys would be looked up in other shards, when number of shards changed
+        StoreMetadata.of(path, nrOfShards).load();
+        try {
+            for (int i = 0; i < nrOfShards; i++) {
+                var shardPath = shardPath(path, i);
+                if (Files.notExists(shardPath)) {
+                    Files.createFile(shardPath);
+                }
+                shards[i] = Engine.of(new LockManager(), shardPath,
+                        (maxNrPages + nrOfShards - 1) / nrOfShards, pageSize, shardOptions, commits);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (var shard : shards) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            throw e;
+        }
+        return new ShardedEngine(shards, commits);
+    }
+
+    static Path shardPath(Path path, int shard) {
+        return path.resolveSibling(path.getFileName() + "." + shard);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException {
+        shardOf(key).put(key, value);
+    }
+
+    @Override
+    public void putAll(List<? extends Map.Entry<byte[], byte[]>> entries) throws IOException {
+        var entriesByShard = new ArrayList<List<Map.Entry<byte[], byte[]>>>(shards.length);
+        for (int shard = 0; shard < shards.length; shard++) {
+            entriesByShard.add(new ArrayList<>());
+        }
+        for (var entry : entries) {
+            entriesByShard.get(shardNo(entry.getKey())).add(entry);
+        }
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (!entriesByShard.get(shard).isEmpty()) {
+                shards[shard].putAll(entriesByShard.get(shard));
+            }
+        }
+    }
+
+    @Override
+    public Record get(byte[] key) throws IOException {
+        return shardOf(key).get(key);
+    }
+
+    @Override
+    public int get(byte[] key, ByteBuffer target) throws IOException {
+        return shardOf(key).get(key, target);
+    }
+
+    @Override
+    public InputStream getStream(byte[] key) throws IOException {
+        return shardOf(key).getStream(key);
+    }
+
+    @Override
+    public List<Record> getAll(List<byte[]> keys) throws IOException {
+        var records = new Record[keys.size()];
+        var positionsByShard = groupByShard(keys);
+        for (int shard = 0; shard < shards.length; shard++) {
+            var positions = positionsByShard.get(shard);
+            if (!positions.isEmpty()) {
+                scatter(shards[shard].getAll(gather(keys, positions)), positions, records);
+            }
+        }
+        return Arrays.asList(records);
+    }
+
+    /**
+     * Merges ordered scans of all shards.
+     */
+    @Override
+    public Iterator<Record> scan(byte[] from, byte[] to) {
+        var scans = new ArrayList<Iterator<Record>>(shards.length);
+        for (var shard : shards) {
+            scans.add(shard.scan(from, to));
+        }
+        return new MergingIterator(scans);
+    }
+
+    /**
+     * Opens snapshot of all shards at one sequence, without holding off writers.
+     */
+    @Override
+    public Snapshot snapshot() {
+        var sequence = commits.open();
+        var snapshots = new Snapshot[shards.length];
+        for (int shard = 0; shard < shards.length; shard++) {
+            snapshots[shard] = shards[shard].snapshotOf(sequence);
+        }
+        return new ShardedSnapshot(sequence, snapshots);
+    }
+
+    /**
+     * Begins transaction in every shard, all of them reading snapshot of one sequence.
+     */
+    @Override
+    public Transaction begin() {
+        var sequence = commits.open();
+        var transactions = new Engine.EngineTransaction[shards.length];
+        for (int shard = 0; shard < shards.length; shard++) {
+            transactions[shard] = shards[shard].transactionOf(sequence);
+        }
+        return new ShardedTransaction(sequence, transactions);
+    }
+
+    @Override
+    public Record remove(byte[] key) throws IOException {
+        return shardOf(key).remove(key);
+    }
+
+    @Override
+    public List<Record> removeAll(List<byte[]> keys) throws IOException {
+        var records = new Record[keys.size()];
+        var positionsByShard = groupByShard(keys);
+        for (int shard = 0; shard < shards.length; shard++) {
+            var positions = positionsByShard.get(shard);
+            if (!positions.isEmpty()) {
+                scatter(shards[shard].removeAll(gather(keys, positions)), positions, records);
+            }
+        }
+        return Arrays.asList(records);
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        for (var shard : shards) {
+            shard.checkpoint();
+        }
+    }
+
+    @Override
+    public int compact() {
+        int truncated = 0;
+        for (var shard : shards) {
+            truncated += shard.compact();
+        }
+        return truncated;
+    }
+
+    /**
+     * Closes all shards, even when some of them fail to close.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (var shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private Engine shardOf(byte[] key) {
+        return shards[shardNo(key)];
+    }
+
+    private int shardNo(byte[] key) {
+        var hash = Arrays.hashCode(key);
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    /**
+     * @return positions of keys by shard, empty list for shard without keys
+     */
+    private List<List<Integer>> groupByShard(List<byte[]> keys) {
+        var positionsByShard = new ArrayList<List<Integer>>(shards.length);
+        for (int shard = 0; shard < shards.length; shard++) {
+            positionsByShard.add(new ArrayList<>());
+        }
+        for (int position = 0; position < keys.size(); position++) {
+            positionsByShard.get(shardNo(keys.get(position))).add(position);
+        }
+        return positionsByShard;
+    }
+
+    private static List<byte[]> gather(List<byte[]> keys, List<Integer> positions) {
+        var shardKeys = new ArrayList<byte[]>(positions.size());
+        for (int position : positions) {
+            shardKeys.add(keys.get(position));
+        }
+        return shardKeys;
+    }
+
+    /**
+     * Closes sequence of snapshot, once all its shard snapshots are closed.
+     */
+    private void close(long sequence) {
+        var oldest = commits.close(sequence);
+        for (var shard : shards) {
+            shard.pruneVersions(oldest);
+        }
+    }
+
+    private static void scatter(List<Record> shardRecords, List<Integer> positions, Record[] records) {
+        for (int i = 0; i < positions.size(); i++) {
+            records[positions.get(i)] = shardRecords.get(i);
+        }
+    }
+
+    private class ShardedSnapshot implements Snapshot {
+
+        private final long sequence;
+        private final Snapshot[] snapshots;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private ShardedSnapshot(long sequence, Snapshot[] snapshots) {
+            this.sequence = sequence;
+            this.snapshots = snapshots;
+        }
+
+        @Override
+        public Record get(byte[] key) throws IOException {
+            return snapshots[shardNo(key)].get(key);
+        }
+
+        @Override
+        public List<Record> getAll(List<byte[]> keys) throws IOException {
+            var records = new Record[keys.size()];
+            var positionsByShard = groupByShard(keys);
+            for (int shard = 0; shard < snapshots.length; shard++) {
+                var positions = positionsByShard.get(shard);
+                if (!positions.isEmpty()) {
+                    scatter(snapshots[shard].getAll(gather(keys, positions)), positions, records);
+                }
+            }
+            return Arrays.asList(records);
+        }
+
+        @Override
+        public Iterator<Record> scan(byte[] from, byte[] to) {
+            var scans = new ArrayList<Iterator<Record>>(snapshots.length);
+            for (var snapshot : snapshots) {
+                scans.add(snapshot.scan(from, to));
+            }
+            return new MergingIterator(scans);
+        }
+
+        @Override
+        public void close() {
+            for (var snapshot : snapshots) {
+                snapshot.close();
+            }
+            if (closed.compareAndSet(false, true)) {
+                ShardedEngine.this.close(sequence);
+            }
+        }
+    }
+
+    /**
+     * Keys of all shards are locked and checked for conflicts, before changes of any shard
+     * are applied. Shards are always locked in the same order. Changes of all shards
+     * are committed as one change, so snapshots see all of them or none.
+     */
+    private class ShardedTransaction implements Transaction {
+
+        private final long sequence;
+        private final Engine.EngineTransaction[] transactions;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private ShardedTransaction(long sequence, Engine.EngineTransaction[] transactions) {
+            this.sequence = sequence;
+            this.transactions = transactions;
+        }
+
+        @Override
+        public Record get(byte[] key) throws IOException {
+            return transactions[shardNo(key)].get(key);
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            transactions[shardNo(key)].put(key, value);
+        }
+
+        @Override
+        public void remove(byte[] key) {
+            transactions[shardNo(key)].remove(key);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            int locked = 0;
+            try {
+                for (; locked < transactions.length; locked++) {
+                    transactions[locked].lock();
+                }
+                // all shards are checked before versions are kept in any of them
+                for (var transaction : transactions) {
+                    transaction.check();
+                }
+                var change = commits.begin();
+                try {
+                    for (var transaction : transactions) {
+                        transaction.keep(change);
+                    }
+                    for (var transaction : transactions) {
+                        transaction.apply();
+                    }
+                } finally {
+                    change.commit();
+                }
+            } finally {
+                for (int shard = locked - 1; shard >= 0; shard--) {
+                    transactions[shard].unlock();
+                }
+                close();
+            }
+            for (var shard : shards) {
+                shard.checkpointIfNeeded();
+            }
+        }
+
+        @Override
+        public void rollback() {
+            for (var transaction : transactions) {
+                transaction.rollback();
+            }
+            close();
+        }
+
+        @Override
+        public void close() {
+            for (var transaction : transactions) {
+                transaction.close();
+            }
+            if (closed.compareAndSet(false, true)) {
+                ShardedEngine.this.close(sequence);
+            }
+        }
+    }
+
+    /**
+     * Iterates records of ordered iterators in ascending order of keys.
+     */
+    private static class MergingIterator implements Iterator<Record> {
+
+        // iterators ordered by their current record
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+                Comparator.comparing((Head head) -> head.record.key(), Arrays::compareUnsigned));
+
+        private MergingIterator(List<Iterator<Record>> iterators) {
+            for (var iterator : iterators) {
+                if (iterator.hasNext()) {
+                    heads.add(new Head(iterator.next(), iterator));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Record next() {
+            var head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            if (head.iterator.hasNext()) {
+                heads.add(new Head(head.iterator.next(), head.iterator));
+            }
+            return head.record;
+        }
+
+        private static class Head {
+            private final Record record;
+            private final Iterator<Record> iterator;
+
+            private Head(Record record, Iterator<Record> iterator) {
+                this.record = record;
+                this.iterator = iterator;
+            }
+        }
+    }
+}
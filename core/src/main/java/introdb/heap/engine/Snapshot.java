@@ -0,0 +1,36 @@
+package introdb.heap.engine;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Read view of the store at the point it was opened, see {@link StorageEngine#snapshot()}.
+ */
+public interface Snapshot extends AutoCloseable {
+
+    /**
+     * @return record seen by the snapshot, or null when there was no such key
+     */
+    Record get(byte[] key) throws IOException;
+
+    /**
+     * @return records in order of keys, null for missing keys
+     */
+    List<Record> getAll(List<byte[]> keys) throws IOException;
+
+    /**
+     * Iterates records seen by the snapshot with keys in range, in ascending order of keys.
+     * Requires {@link Options#withOrderedIndex(boolean)}.
+     *
+     * @param from first key (inclusive), null for no lower bound
+     * @param to   last key (exclusive), null for no upper bound
+     */
+    Iterator<Record> scan(byte[] from, byte[] to);
+
+    /**
+     * Releases versions kept for the snapshot.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,126 @@
+package introdb.heap.engine;
+
+import introdb.heap.lock.LockManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Key value storage over heap files, keys and values are byte arrays.
+ */
+public interface StorageEngine {
+
+    /**
+     * Opens single engine, or sharded engine when options ask for more shards.
+     */
+    static StorageEngine of(Path path, int maxNrPages, int pageSize, Options options) throws IOException {
+        return options.shards() > 1
+                ? ShardedEngine.of(path, maxNrPages, pageSize, options)
+                : Engine.of(new LockManager(), path, maxNrPages, pageSize, options);
+    }
+
+    void put(byte[] key, byte[] value) throws IOException;
+
+    /**
+     * Puts all entries, when key repeats, last entry wins.
+     */
+    void putAll(List<? extends Map.Entry<byte[], byte[]>> entries) throws IOException;
+
+    Record get(byte[] key) throws IOException;
+
+    /**
+     * Copies value into target buffer, nothing is copied when value doesn't fit
+     * into remaining space of the buffer.
+     *
+     * @return size of value, or -1 when there is no such key
+     */
+    int get(byte[] key, ByteBuffer target) throws IOException;
+
+    /**
+     * Opens stream over value, large values are read from overflow pages while stream is consumed.
+     *
+     * @return stream, or null when there is no such key
+     */
+    InputStream getStream(byte[] key) throws IOException;
+
+    /**
+     * @return records in order of keys, null for missing keys
+     */
+    List<Record> getAll(List<byte[]> keys) throws IOException;
+
+    /**
+     * Iterates records with keys in range, in ascending order of keys compared as unsigned bytes.
+     * Records are read in batches grouped by page, iterator reflects changes made meanwhile.
+     * Requires {@link Options#withOrderedIndex(boolean)}.
+     *
+     * @param from first key (inclusive), null for no lower bound
+     * @param to   last key (exclusive), null for no upper bound
+     */
+    Iterator<Record> scan(byte[] from, byte[] to);
+
+    /**
+     * Iterates records with keys starting with prefix, see {@link #scan(byte[], byte[])}.
+     */
+    default Iterator<Record> prefix(byte[] prefix) {
+        return scan(prefix, prefixEnd(prefix));
+    }
+
+    /**
+     * @return removed record, or null when there was no such record
+     */
+    Record remove(byte[] key) throws IOException;
+
+    /**
+     * @return removed records in order of keys, null for missing keys
+     */
+    List<Record> removeAll(List<byte[]> keys) throws IOException;
+
+    /**
+     * Opens consistent read view of the store, changes made after it is opened are not seen
+     * through it. Snapshot reads don't block writers, snapshot has to be closed, as previous
+     * values of changed keys are kept in memory while it is open.
+     */
+    Snapshot snapshot();
+
+    /**
+     * Begins transaction, which reads snapshot of the store and commits its puts and removes at once.
+     */
+    Transaction begin();
+
+    /**
+     * Writes all changes to heap files and discards write ahead log.
+     */
+    void checkpoint() throws IOException;
+
+    /**
+     * Runs compaction right away.
+     *
+     * @return number of pages truncated from heap files
+     */
+    int compact();
+
+    /**
+     * Checkpoints and closes all files.
+     */
+    void close() throws IOException;
+
+    /**
+     * @return smallest key greater than all keys starting with prefix, null when there is no such key
+     */
+    private static byte[] prefixEnd(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                var end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
+        }
+        return null;
+    }
+}
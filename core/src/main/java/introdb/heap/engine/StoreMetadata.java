@@ -0,0 +1,111 @@
+package introdb.heap.engine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Format of the store, persisted next to the heap file. Store written with other page layout
+ * is refused when opened, instead of its pages being read as garbage. Heap file with pages
+ * and without metadata was written before pages were versioned, so it is refused too.
+ * Number of shards is kept too, store opened with other number of shards would look for keys
+ * in other heap files. Metadata also keeps number of the last checkpoint, files written at checkpoint
+ * which aren't replayed from the log are stamped with it, so stale ones are told apart.
+ *
+ * Metadata file format: [magic (int)][format version (int)][nr of shards (int)][checkpoint (long)]
+ */
+class StoreMetadata {
+
+    static final String SUFFIX = ".meta";
+
+    private static final int MAGIC = 0x696e7472;
+
+    // slotted pages with flags, overflow chains and compressed records, number of shards in metadata
+    static final int FORMAT_VERSION = 3;
+
+    private final Path path;
+    private final Path heapFilePath;
+    private final int shards;
+
+    // number of the last checkpoint
+    private volatile long checkpoint;
+
+    private StoreMetadata(Path path, Path heapFilePath, int shards) {
+        this.path = path;
+        this.heapFilePath = heapFilePath;
+        this.shards = shards;
+    }
+
+    static StoreMetadata of(Path heapFilePath) {
+        return of(heapFilePath, 1);
+    }
+
+    /**
+     * Metadata of store partitioned across given number of shards.
+     */
+    static StoreMetadata of(Path heapFilePath, int shards) {
+        return new StoreMetadata(heapFilePath.resolveSibling(heapFilePath.getFileName() + SUFFIX), heapFilePath, shards);
+    }
+
+    /**
+     * Checks format of existing store, or writes metadata of new one.
+     *
+     * @throws IOException when store was written in other format or with other number of shards
+     */
+    void load() throws IOException {
+        if (Files.notExists(path)) {
+            if (Files.exists(heapFilePath) && Files.size(heapFilePath) > 0) {
+                throw new IOException(format("Store %s has no format version, it was written by older version.", heapFilePath));
+            }
+            save(0);
+            return;
+        }
+        try (var in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(format("%s is not metadata of a store.", path));
+            }
+            var version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException(format("Store %s has format version %d, expected %d.", heapFilePath, version, FORMAT_VERSION));
+            }
+            var shards = in.readInt();
+            if (shards != this.shards) {
+                throw new IOException(format("Store %s has %d shards, expected %d.", heapFilePath, shards, this.shards));
+            }
+            checkpoint = in.readLong();
+        }
+    }
+
+    long checkpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Persists number of checkpoint, once all files of the checkpoint are written.
+     */
+    void checkpoint(long checkpoint) throws IOException {
+        save(checkpoint);
+    }
+
+    private void save(long checkpoint) throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var file = new FileOutputStream(tmp.toFile());
+             var out = new DataOutputStream(file)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(shards);
+            out.writeLong(checkpoint);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+        this.checkpoint = checkpoint;
+    }
+}
@@ -0,0 +1,24 @@
+package introdb.heap.engine;
+
+/**
+ * When write ahead log is forced to disk.
+ */
+public enum SyncPolicy {
+
+    /**
+     * Every put/remove waits until its log record is on disk, concurrent commits
+     * share one fsync (group commit).
+     */
+    EVERY_COMMIT,
+
+    /**
+     * Log is forced to disk in background every sync interval, commits don't wait,
+     * so crash may lose changes from the last interval.
+     */
+    INTERVAL,
+
+    /**
+     * Log is never forced explicitly, operating system decides when to write it.
+     */
+    OS
+}
@@ -0,0 +1,44 @@
+package introdb.heap.engine;
+
+import java.io.IOException;
+
+/**
+ * Puts and removes committed at once, see {@link StorageEngine#begin()}.
+ *
+ * Transaction reads the store as it was when it began, together with its own changes.
+ * Changes are kept in memory until commit, commit fails when another writer changed
+ * any of the keys meanwhile (first committer wins).
+ */
+public interface Transaction extends AutoCloseable {
+
+    /**
+     * @return record seen by the transaction, or null when there is no such key
+     */
+    Record get(byte[] key) throws IOException;
+
+    /**
+     * @throws IllegalArgumentException when key exceeds page size
+     */
+    void put(byte[] key, byte[] value);
+
+    void remove(byte[] key);
+
+    /**
+     * Writes all changes as one write ahead log record, so they survive crash all or none.
+     *
+     * @throws TransactionConflictException when any changed key was changed by another writer
+     *                                      since the transaction began, nothing is written then
+     */
+    void commit() throws IOException;
+
+    /**
+     * Discards all changes.
+     */
+    void rollback();
+
+    /**
+     * Rolls back transaction, which wasn't committed.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,14 @@
+package introdb.heap.engine;
+
+/**
+ * Thrown by commit of transaction, when key it changes was changed by another writer
+ * since the transaction began. Transaction is rolled back, caller can retry it.
+ */
+public class TransactionConflictException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TransactionConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,187 @@
+package introdb.heap.engine;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Previous values of keys changed while snapshots are open, so snapshots read the store
+ * as it was when they were opened, while writers keep changing pages.
+ *
+ * Every change is numbered by {@link CommitSequence} and snapshot remembers the last number it sees.
+ * Before key is changed, its current value is kept as version superseded by the change, versions
+ * of a key are chained from the newest. Snapshot reads the page first and then the oldest version
+ * superseded after the snapshot, when there is one. Version is kept before page is changed,
+ * so snapshot reading changed page always finds it. Callers hold locks of changed keys,
+ * so versions of a key are ordered by their sequence.
+ *
+ * Versions are kept in memory only while snapshots are open, versions superseded before
+ * the oldest open snapshot are dropped when snapshot is closed.
+ */
+class VersionStore {
+
+    private final ConcurrentSkipListMap<byte[], Version> versions = new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+
+    /**
+     * Reads current records of keys, null for missing keys.
+     */
+    @FunctionalInterface
+    interface Reader {
+        List<Record> read(List<byte[]> keys) throws IOException;
+    }
+
+    private VersionStore() {
+    }
+
+    static VersionStore of() {
+        return new VersionStore();
+    }
+
+    /**
+     * Drops versions superseded before the oldest open snapshot.
+     */
+    void prune(long oldest) {
+        for (var key : versions.keySet()) {
+            versions.computeIfPresent(key, (k, version) -> version.prune(oldest));
+        }
+    }
+
+    /**
+     * Checks that no key was changed after the snapshot, before any version of the change is kept.
+     * Caller has to hold locks of the keys.
+     *
+     * @throws TransactionConflictException when any key was changed after the snapshot
+     */
+    void check(List<byte[]> keys, long snapshot) {
+        for (var key : keys) {
+            if (find(key, snapshot) != null) {
+                throw new TransactionConflictException("Key was changed by another writer since transaction began.");
+            }
+        }
+    }
+
+    /**
+     * Keeps current records of keys as versions superseded by the change, when the change
+     * is tracked. Caller has to hold locks of the keys until the change is committed.
+     */
+    void keep(CommitSequence.Change change, List<byte[]> keys, Reader current) throws IOException {
+        if (!change.isTracked()) {
+            return;
+        }
+        var records = current.read(keys);
+        for (int i = 0; i < keys.size(); i++) {
+            var version = new Version(records.get(i), change);
+            versions.compute(keys.get(i), (k, newest) -> version.supersede(newest));
+        }
+    }
+
+    /**
+     * @return version of key seen by snapshot, or null when snapshot sees the current record
+     */
+    Version find(byte[] key, long snapshot) {
+        Version found = null;
+        for (var version = versions.get(key); version != null && version.sequence() > snapshot; version = version.older) {
+            found = version;
+        }
+        return found;
+    }
+
+    /**
+     * @return union of keys in range and keys with versions in range, in ascending order
+     */
+    Iterator<byte[]> keys(byte[] from, byte[] to, Iterator<byte[]> current) {
+        var range = from == null && to == null ? versions
+                : from == null ? versions.headMap(to)
+                : to == null ? versions.tailMap(from)
+                : versions.subMap(from, to);
+        return new UnionIterator(current, range.keySet().iterator());
+    }
+
+    /**
+     * Record of key superseded by change with the sequence, null record for missing key.
+     */
+    static class Version {
+
+        private final Record record;
+        private final CommitSequence.Change change;
+        private volatile Version older;
+
+        private Version(Record record, CommitSequence.Change change) {
+            this.record = record;
+            this.change = change;
+        }
+
+        Record record() {
+            return record;
+        }
+
+        private long sequence() {
+            return change.sequence();
+        }
+
+        private Version supersede(Version newest) {
+            this.older = newest;
+            return this;
+        }
+
+        /**
+         * @return chain without versions superseded before the oldest snapshot, or null when it is empty
+         */
+        private Version prune(long oldest) {
+            if (sequence() <= oldest) {
+                return null;
+            }
+            var version = this;
+            while (version.older != null && version.older.sequence() > oldest) {
+                version = version.older;
+            }
+            version.older = null;
+            return this;
+        }
+    }
+
+    private static class UnionIterator implements Iterator<byte[]> {
+
+        private final Iterator<byte[]> first;
+        private final Iterator<byte[]> second;
+        private byte[] nextOfFirst;
+        private byte[] nextOfSecond;
+
+        private UnionIterator(Iterator<byte[]> first, Iterator<byte[]> second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextOfFirst == null && first.hasNext()) {
+                nextOfFirst = first.next();
+            }
+            if (nextOfSecond == null && second.hasNext()) {
+                nextOfSecond = second.next();
+            }
+            return nextOfFirst != null || nextOfSecond != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var compare = nextOfFirst == null ? 1
+                    : nextOfSecond == null ? -1
+                    : Arrays.compareUnsigned(nextOfFirst, nextOfSecond);
+            var next = compare <= 0 ? nextOfFirst : nextOfSecond;
+            if (compare <= 0) {
+                nextOfFirst = null;
+            }
+            if (compare >= 0) {
+                nextOfSecond = null;
+            }
+            return next;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package introdb.heap.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Sequential redo log of puts and removes, written before pages are modified.
+ *
+ * Log record is a group of operations applied atomically:
+ * [payload size (int)][crc32c of payload (int)][nr of ops (int)][op]...
+ * where op is [type (byte)][key size (int)][key][value size (int)][value].
+ *
+ * Group commit: log records are appended to the file without forcing it, committer
+ * then forces the log only when nobody else forced it past its record yet, so many
+ * concurrent commits are made durable by one fsync.
+ */
+class WriteAheadLog {
+
+    static final String SUFFIX = ".wal";
+
+    private static final Logger LOG = Logger.getLogger(WriteAheadLog.class.getName());
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final Path path;
+    private final SyncPolicy syncPolicy;
+    private final long syncInterval;
+
+    private final Object syncLock = new Object();
+    private FileChannel fileChannel;
+    private ScheduledExecutorService syncer;
+
+    // log position after last appended and last forced record
+    private volatile long writtenPosition;
+    private volatile long syncedPosition;
+
+    private WriteAheadLog(Path path, SyncPolicy syncPolicy, long syncInterval) {
+        this.path = path;
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = syncInterval;
+    }
+
+    static WriteAheadLog of(Path heapFilePath, Options options) {
+        return new WriteAheadLog(heapFilePath.resolveSibling(heapFilePath.getFileName() + SUFFIX),
+                options.syncPolicy(), options.syncInterval());
+    }
+
+    void open() throws IOException {
+        fileChannel = FileChannel.open(path, CREATE, READ, WRITE);
+        writtenPosition = syncedPosition = fileChannel.size();
+
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                var thread = new Thread(r, "wal-sync-" + path.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(() -> force(writtenPosition), syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replays all complete log records, stops at first torn or corrupted record.
+     *
+     * @return number of replayed operations
+     */
+    int replay(Consumer<Op> consumer) throws IOException {
+        int replayed = 0;
+        long position = 0;
+        var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+        while (read(header.clear(), position)) {
+            int payloadSize = header.getInt(0);
+            int crc = header.getInt(4);
+            if (payloadSize <= 0 || position + RECORD_HEADER_SIZE + payloadSize > fileChannel.size()) {
+                break;
+            }
+            var payload = ByteBuffer.allocate(payloadSize);
+            if (!read(payload, position + RECORD_HEADER_SIZE) || crc(payload.flip()) != crc) {
+                break;
+            }
+            for (var op : decode(payload.rewind())) {
+                consumer.accept(op);
+                replayed++;
+            }
+            position += RECORD_HEADER_SIZE + payloadSize;
+        }
+
+        if (position < fileChannel.size()) {
+            LOG.warning(format("discarding %d bytes of incomplete log records", fileChannel.size() - position));
+        }
+        return replayed;
+    }
+
+    /**
+     * Appends operations as one log record and waits until it is durable, according to sync policy.
+     */
+    void commit(List<Op> ops) {
+        var position = append(ops);
+        if (syncPolicy == SyncPolicy.EVERY_COMMIT) {
+            force(position);
+        }
+    }
+
+    void commit(Op op) {
+        commit(List.of(op));
+    }
+
+    long size() {
+        return writtenPosition;
+    }
+
+    /**
+     * Discards all log records, called when all logged changes are already in heap and index files.
+     */
+    void truncate() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                fileChannel.truncate(0);
+                fileChannel.force(true);
+                writtenPosition = syncedPosition = 0;
+            }
+        }
+    }
+
+    void close() throws IOException {
+        if (syncer != null) {
+            // don't interrupt syncer, interrupted FileChannel.force() closes the channel
+            syncer.shutdown();
+            try {
+                syncer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        force(writtenPosition);
+        fileChannel.close();
+    }
+
+    private synchronized long append(List<Op> ops) {
+        var payloadSize = 4 + ops.stream().mapToInt(Op::size).sum();
+        var record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadSize);
+        record.putInt(payloadSize).putInt(0).putInt(ops.size());
+        ops.forEach(op -> op.append(record));
+        record.putInt(4, crc(record.duplicate().position(RECORD_HEADER_SIZE)));
+
+        try {
+            var position = writtenPosition;
+            record.flip();
+            while (record.hasRemaining()) {
+                position += fileChannel.write(record, position);
+            }
+            return writtenPosition = position;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void force(long position) {
+        synchronized (syncLock) {
+            if (syncedPosition >= position) {
+                return; // somebody else already forced our record
+            }
+            var target = writtenPosition;
+            try {
+                fileChannel.force(false);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            syncedPosition = target;
+        }
+    }
+
+    private boolean read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int crc(ByteBuffer buffer) {
+        var crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static List<Op> decode(ByteBuffer payload) {
+        var nrOfOps = payload.getInt();
+        var ops = new ArrayList<Op>(nrOfOps);
+        for (int i = 0; i < nrOfOps; i++) {
+            var type = payload.get();
+            var key = new byte[payload.getInt()];
+            payload.get(key);
+            var value = new byte[payload.getInt()];
+            payload.get(value);
+            ops.add(new Op(type, key, value));
+        }
+        return ops;
+    }
+
+    static class Op {
+        static final byte PUT = 1;
+        static final byte REMOVE = 2;
+
+        private static final byte[] EMPTY = new byte[0];
+
+        private final byte type;
+        private final byte[] key;
+        private final byte[] value;
+
+        private Op(byte type, byte[] key, byte[] value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+
+        static Op put(byte[] key, byte[] value) {
+            return new Op(PUT, key, value);
+        }
+
+        static Op remove(byte[] key) {
+            return new Op(REMOVE, key, EMPTY);
+        }
+
+        boolean isPut() {
+            return type == PUT;
+        }
+
+        byte[] key() {
+            return key;
+        }
+
+        byte[] value() {
+            return value;
+        }
+
+        int size() {
+            return 1 + 4 + key.length + 4 + value.length;
+        }
+
+        void append(ByteBuffer buffer) {
+            buffer.put(type).putInt(key.length).put(key).putInt(value.length).put(value);
+        }
+    }
+}
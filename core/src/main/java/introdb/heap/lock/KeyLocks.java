@@ -0,0 +1,25 @@
+package introdb.heap.lock;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Key locks held by writer, see {@link LockManager#lockKeys(java.util.Collection)}.
+ */
+public class KeyLocks implements AutoCloseable {
+
+	private final ReentrantLock[] locks;
+
+	KeyLocks(ReentrantLock[] locks) {
+		this.locks = locks;
+	}
+
+	/**
+	 * Releases locks in reverse order.
+	 */
+	@Override
+	public void close() {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+	}
+}
@@ -1,51 +1,90 @@
 package introdb.heap.lock;
 
 import introdb.heap.pool.ObjectFactory;
-import introdb.heap.pool.ObjectPool;
 
-import java.util.concurrent.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Fixed table of read/write locks, page is guarded by lock at index derived from its number.
+ *
+ * Pages share locks (stripes), so number of locks doesn't grow with number of touched pages
+ * and lock is found in constant time. Operation must not hold lock of one page while it takes
+ * lock of another page, as both pages can share the same lock.
+ *
+ * Keys have their own table of exclusive locks, writer takes locks of its keys before any page
+ * lock, so changes of the same key are serialized from write ahead log to pages.
+ */
 public class LockManager {
 
-	private ObjectPool<ReentrantReadWriteLock> objectPool;
-    private final ConcurrentMap<Integer, LockSupportImpl> locksInUse = new ConcurrentHashMap<>();
+	private final LockSupportImpl[] stripes;
+	private final ReentrantLock[] keyStripes;
+	private final int mask;
 
 	public LockManager() {
-		objectPool = new ObjectPool<>(ReentrantReadWriteLock::new,l -> l.getWriteHoldCount() == 0 && l.getReadHoldCount() == 0);
+		this(Runtime.getRuntime().availableProcessors() * 16);
+	}
+
+	/**
+	 * @param concurrencyLevel expected number of concurrently locked pages, rounded up to power of two
+	 */
+	public LockManager(int concurrencyLevel) {
+		this(concurrencyLevel, ReentrantReadWriteLock::new);
 	}
 
 	// visible for testing only, so we can inject mocks
 	LockManager(ObjectFactory<ReentrantReadWriteLock> lockFactory) {
-		objectPool = new ObjectPool<>(lockFactory, l -> l.getWriteHoldCount() == 0 && l.getReadHoldCount() == 0);
+		this(1, lockFactory);
 	}
 
-	public LockSupport lockForPage(int i) {
-		// piggyback, check if some locks can be released to the pool
-		reclaimLock();
+	private LockManager(int concurrencyLevel, ObjectFactory<ReentrantReadWriteLock> lockFactory) {
+		if (concurrencyLevel < 1) {
+			throw new IllegalArgumentException("Concurrency level has to be positive.");
+		}
+		var size = Integer.highestOneBit(concurrencyLevel);
+		if (size < concurrencyLevel) {
+			size <<= 1;
+		}
+		stripes = new LockSupportImpl[size];
+		keyStripes = new ReentrantLock[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new LockSupportImpl(lockFactory.create());
+			keyStripes[i] = new ReentrantLock();
+		}
+		mask = size - 1;
+	}
 
-		// first try to find lock (LockSupport) which could be in use
-		var lockSupport = locksInUse.get(i);
+	public LockSupport lockForPage(int i) {
+		return stripes[spread(i) & mask];
+	}
 
-		// if there is no any locks in use for this page, create a new one
-		if (lockSupport == null) {
-			var lockFuture = objectPool.borrowObject();
-			lockSupport = locksInUse.compute(i, (k, oldV) -> new LockSupportImpl(lockFuture));
+	/**
+	 * Locks keys, keys share locks like pages do, so locks are taken in ascending order
+	 * and writers of overlapping keys don't deadlock.
+	 */
+	public KeyLocks lockKeys(Collection<byte[]> keys) {
+		var indexes = new TreeSet<Integer>();
+		for (var key : keys) {
+			indexes.add(spread(Arrays.hashCode(key)) & mask);
 		}
-
-		return lockSupport;
+		var locks = new ReentrantLock[indexes.size()];
+		int i = 0;
+		for (int index : indexes) {
+			locks[i] = keyStripes[index];
+			locks[i++].lock();
+		}
+		return new KeyLocks(locks);
 	}
 
 	public void shutdown() throws Exception{
 		
 	}
 
-	private void reclaimLock() {
-        locksInUse.forEach((page, lockSupport) -> { // forEach is thread safe
-            if ( lockSupport.isEligibleToCollect() ) {
-				locksInUse.remove(page);
-                objectPool.returnObject(lockSupport.getLock());
-            }
-        });
+	private static int spread(int hash) {
+		// same as HashMap, so pages which differ in higher bits get different locks
+		return hash ^ (hash >>> 16);
 	}
 }
@@ -8,6 +8,16 @@ public interface LockSupport {
 	<R> CompletableFuture<R> inReadOperation(Supplier<R> supplier);
 	
 	<R> CompletableFuture<R> inWriteOperation(Supplier<R> supplier);
+
+	/**
+	 * Runs supplier in calling thread while read lock is held.
+	 */
+	<R> R underReadLock(Supplier<R> supplier);
+
+	/**
+	 * Runs supplier in calling thread while write lock is held.
+	 */
+	<R> R underWriteLock(Supplier<R> supplier);
 	
 	String toString();
 }
@@ -1,61 +1,52 @@
 package introdb.heap.lock;
 
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Supplier;
 
 class LockSupportImpl implements LockSupport {
 
-    private final CompletableFuture<ReentrantReadWriteLock> lockFuture;
-    private final LongAdder counter = new LongAdder();
-    private volatile ReentrantReadWriteLock lock;
+    private final ReentrantReadWriteLock lock;
 
-    public LockSupportImpl(CompletableFuture<ReentrantReadWriteLock> lockFuture) {
-        this.lockFuture = lockFuture;
+    LockSupportImpl(ReentrantReadWriteLock lock) {
+        this.lock = lock;
     }
 
     @Override
     public <R> CompletableFuture<R> inReadOperation(Supplier<R> supplier) {
-        return lockFuture.thenApply((lock) -> {
-            setLockIfEmpty(lock);
-            return lockOperation(lock.readLock(), supplier);
-        });
+        return completed(lock.readLock(), supplier);
     }
 
     @Override
     public <R> CompletableFuture<R> inWriteOperation(Supplier<R> supplier) {
-        return lockFuture.thenApply((lock) -> {
-            setLockIfEmpty(lock);
-            return lockOperation(lock.writeLock(), supplier);
-        });
+        return completed(lock.writeLock(), supplier);
     }
 
-    public synchronized boolean isEligibleToCollect() {
-        return lock != null && counter.sum() <= 0;
+    @Override
+    public <R> R underReadLock(Supplier<R> supplier) {
+        return lockOperation(lock.readLock(), supplier);
     }
 
-    public ReentrantReadWriteLock getLock() {
-        return lock;
+    @Override
+    public <R> R underWriteLock(Supplier<R> supplier) {
+        return lockOperation(lock.writeLock(), supplier);
     }
 
-    private <R> R lockOperation(Lock lock, Supplier<R> supplier) {
-        counter.increment();
-        R operationResult;
+    private <R> CompletableFuture<R> completed(Lock lock, Supplier<R> supplier) {
         try {
-            lock.lock();
-            operationResult = supplier.get();
-        } finally {
-            lock.unlock();
-            counter.decrement();
+            return CompletableFuture.completedFuture(lockOperation(lock, supplier));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        return operationResult;
     }
 
-    private void setLockIfEmpty(ReentrantReadWriteLock lock) {
-        if (this.lock == null && lock != null) {
-            this.lock = lock;
+    private <R> R lockOperation(Lock lock, Supplier<R> supplier) {
+        lock.lock();
+        try {
+            return supplier.get();
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -3,11 +3,17 @@ package introdb.heap.pool;
 import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.concurrent.CompletableFuture.completedFuture;
-import static java.util.concurrent.CompletableFuture.supplyAsync;
 
+/**
+ * Bounded pool of objects.
+ *
+ * When pool is exhausted, borrowers wait in a queue and returned objects are handed
+ * directly to the longest waiting borrower, so no thread is busy waiting for an object.
+ */
 public class ObjectPool<T> {
 
 	private final ObjectFactory<T> fcty;
@@ -15,26 +21,33 @@ public class ObjectPool<T> {
 	private final int maxPoolSize;
 
 	private final AtomicInteger poolSize = new AtomicInteger(0);
-	private final Queue<T> freePool = new ConcurrentLinkedQueue<>();;
+	private final Queue<T> freePool = new ConcurrentLinkedQueue<>();
+	private final Queue<CompletableFuture<T>> waiters = new ConcurrentLinkedQueue<>();
+
+	private volatile boolean shutdown;
 
 	public ObjectPool(ObjectFactory<T> fcty, ObjectValidator<T> validator) {
 		this(fcty,validator,25);
 	}
-	
+
 	public ObjectPool(ObjectFactory<T> fcty, ObjectValidator<T> validator, int maxPoolSize) {
 		this.fcty = fcty;
 		this.validator = validator;
 		this.maxPoolSize = maxPoolSize;
 	}
-	
+
 	/**
 	 * When there is object in pool returns completed future,
 	 * if not, future will be completed when object is
-	 * returned to the pool.
-	 * 
+	 * returned to the pool. Waiting can be stopped by cancelling the future.
+	 *
 	 * @return
 	 */
 	public CompletableFuture<T> borrowObject() {
+		if (shutdown) {
+			return CompletableFuture.failedFuture(new IllegalStateException("Pool is shut down."));
+		}
+
 		// First try to get obj from free pool
 		T obj = freePool.poll();
 		if (obj != null) {
@@ -42,26 +55,56 @@ public class ObjectPool<T> {
 		}
 
 		// Try to create a new object if there is still free space in main pool
-		var currentPoolSize = poolSize.get();
-		if (currentPoolSize < maxPoolSize) {
-			poolSize.incrementAndGet();
-			obj = fcty.create();
-			return completedFuture(obj);
+		if (reserve()) {
+			return create();
 		}
 
 		// Wait until some object will be returned
-		return supplyAsync(this::waitUntilObjectFreed);
-	}	
-	
+		var waiter = new CompletableFuture<T>();
+		// cancelled or timed out waiter leaves the queue right away
+		waiter.whenComplete((o, e) -> {
+			if (e != null) {
+				waiters.remove(waiter);
+			}
+		});
+		waiters.offer(waiter);
+
+		// object could be returned before we got into the queue
+		if (null != (obj = freePool.poll())) {
+			handOff(obj);
+		}
+		return waiter;
+	}
+
+	/**
+	 * Same as {@link #borrowObject()}, but returned future fails with TimeoutException,
+	 * when no object is available within timeout.
+	 */
+	public CompletableFuture<T> borrowObject(long timeout, TimeUnit unit) {
+		return borrowObject().orTimeout(timeout, unit);
+	}
+
 	public void returnObject(T object) {
 		if (validator.validate(object)) {
-			freePool.offer(object);
+			handOff(object);
 		} else {
 			poolSize.decrementAndGet();
+			// invalid object frees space for a new one, which can be created for a waiter
+			if (!waiters.isEmpty() && reserve()) {
+				create().thenAccept(this::handOff);
+			}
 		}
 	}
 
+	/**
+	 * Fails all waiting borrowers, no objects can be borrowed afterwards.
+	 */
 	public void shutdown() throws InterruptedException {
+		shutdown = true;
+		CompletableFuture<T> waiter;
+		while (null != (waiter = waiters.poll())) {
+			waiter.completeExceptionally(new IllegalStateException("Pool is shut down."));
+		}
 	}
 
 	public int getPoolSize() {
@@ -72,13 +115,48 @@ public class ObjectPool<T> {
 		return poolSize.get() - freePool.size();
 	}
 
-	private T waitUntilObjectFreed() {
-		T obj;
+	public int getWaiting() {
+		return waiters.size();
+	}
+
+	/**
+	 * Reserves place for a new object, never lets pool grow over max pool size.
+	 */
+	private boolean reserve() {
+		int currentPoolSize;
+		do {
+			currentPoolSize = poolSize.get();
+			if (currentPoolSize >= maxPoolSize) {
+				return false;
+			}
+		} while (!poolSize.compareAndSet(currentPoolSize, currentPoolSize + 1));
+		return true;
+	}
+
+	private CompletableFuture<T> create() {
+		try {
+			return completedFuture(fcty.create());
+		} catch (RuntimeException e) {
+			poolSize.decrementAndGet();
+			return CompletableFuture.failedFuture(e);
+		}
+	}
 
-		while (null == (obj = freePool.poll())) {
-			Thread.onSpinWait();
+	/**
+	 * Gives object to the first waiter still waiting for it, or puts it back to free pool.
+	 */
+	private void handOff(T object) {
+		CompletableFuture<T> waiter;
+		while (null != (waiter = waiters.poll())) {
+			if (waiter.complete(object)) {
+				return;
+			}
 		}
+		freePool.offer(object);
 
-		return obj;
+		// waiter could join the queue after we found it empty, but before object got into free pool
+		if (!waiters.isEmpty() && null != (object = freePool.poll())) {
+			handOff(object);
+		}
 	}
 }
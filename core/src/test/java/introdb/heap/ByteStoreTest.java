@@ -0,0 +1,140 @@
+package introdb.heap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import introdb.heap.engine.Compression;
+import introdb.heap.engine.Options;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ByteStoreTest {
+
+	private Path heapFilePath;
+	private ByteStore store;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+		store = ByteStore.open(heapFilePath, 1024, 4*1024);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		store.close();
+		Files.delete(heapFilePath);
+		for (var suffix : new String[] {".idx", ".wal", ".fsm", ".meta"}) {
+			Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + suffix));
+		}
+	}
+
+	@Test
+	void put_get_and_remove_bytes() throws IOException {
+		store.put(new byte[] {1}, new byte[] {1, 2, 3});
+
+		assertArrayEquals(new byte[] {1, 2, 3}, store.get(new byte[] {1}));
+		assertArrayEquals(new byte[] {1, 2, 3}, store.remove(new byte[] {1}));
+		assertNull(store.get(new byte[] {1}));
+		assertNull(store.remove(new byte[] {1}));
+	}
+
+	@Test
+	void read_value_into_caller_buffer() throws IOException {
+		var key = ByteBuffer.allocateDirect(4).putInt(7).flip();
+		store.put(key, ByteBuffer.wrap(new byte[] {0, 1, 2, 3, 4}).position(1));
+
+		var target = ByteBuffer.allocate(8).put((byte) 9);
+
+		assertEquals(4, store.get(key, target));
+		assertEquals(5, target.position());
+		assertArrayEquals(new byte[] {9, 1, 2, 3, 4}, Arrays.copyOf(target.array(), 5));
+		assertEquals(4, key.remaining());
+	}
+
+	@Test
+	void return_value_size_when_caller_buffer_is_too_small() throws IOException {
+		store.put(new byte[] {1}, new byte[100]);
+
+		var target = ByteBuffer.allocate(10);
+
+		assertEquals(100, store.get(new byte[] {1}, target));
+		assertEquals(0, target.position());
+		assertEquals(-1, store.get(new byte[] {2}, target));
+	}
+
+	@Test
+	void stream_value_larger_than_page() throws IOException {
+		var value = new byte[50_000];
+		new Random().nextBytes(value);
+		store.put(new byte[] {1}, value);
+		store.put(new byte[] {2}, new byte[] {1, 2, 3});
+
+		try (var stream = store.getStream(new byte[] {1})) {
+			assertArrayEquals(value, stream.readAllBytes());
+		}
+		try (var stream = store.getStream(new byte[] {2})) {
+			assertArrayEquals(new byte[] {1, 2, 3}, stream.readAllBytes());
+		}
+		assertNull(store.getStream(new byte[] {3}));
+
+		var target = ByteBuffer.allocate(value.length);
+		assertEquals(value.length, store.get(new byte[] {1}, target));
+		assertArrayEquals(value, target.array());
+		assertArrayEquals(value, store.remove(new byte[] {1}));
+		assertNull(store.getStream(new byte[] {1}));
+	}
+
+	@Test
+	void scan_keys_in_range_and_with_prefix() throws IOException {
+		store.close();
+		store = ByteStore.open(heapFilePath, 1024, 4*1024, Options.defaults().withOrderedIndex(true));
+		for (int i = 0; i < 1000; i++) {
+			store.put(ByteBuffer.allocate(4).putInt(i).array(), new byte[] {(byte) i});
+		}
+		store.close();
+		store = ByteStore.open(heapFilePath, 1024, 4*1024, Options.defaults().withOrderedIndex(true));
+		store.remove(ByteBuffer.allocate(4).putInt(500).array());
+
+		var scan = store.scan(ByteBuffer.allocate(4).putInt(200).array(), ByteBuffer.allocate(4).putInt(800).array());
+		var expected = 200;
+		while (scan.hasNext()) {
+			expected += expected == 500 ? 1 : 0;
+			var entry = scan.next();
+			assertEquals(expected, ByteBuffer.wrap(entry.getKey()).getInt());
+			assertArrayEquals(new byte[] {(byte) expected}, entry.getValue());
+			expected++;
+		}
+		assertEquals(800, expected);
+
+		var prefix = store.prefix(new byte[] {0, 0, 3});
+		var count = 0;
+		while (prefix.hasNext()) {
+			assertEquals(0x300 + count++, ByteBuffer.wrap(prefix.next().getKey()).getInt());
+		}
+		assertEquals(1000 - 0x300, count);
+	}
+
+	@Test
+	void read_compressed_value_into_caller_buffer() throws IOException {
+		store.close();
+		store = ByteStore.open(heapFilePath, 1024, 4*1024, Options.defaults().withCompression(Compression.fast()));
+		store.put(new byte[] {1}, new byte[1000]);
+
+		var target = ByteBuffer.allocate(1000);
+
+		assertEquals(1000, store.get(new byte[] {1}, target));
+		assertEquals(1000, target.position());
+		assertArrayEquals(new byte[1000], store.get(new byte[] {1}));
+		assertEquals(1000, store.get(new byte[] {1}, ByteBuffer.allocate(10)));
+	}
+}
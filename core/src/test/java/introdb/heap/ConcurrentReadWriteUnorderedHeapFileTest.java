@@ -51,7 +51,12 @@ public class ConcurrentReadWriteUnorderedHeapFileTest {
 
 	@AfterEach
 	void tearDown() throws IOException, InterruptedException {
+		heapFile.close();
 		Files.delete(heapFilePath);
+		Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".idx"));
+		Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".wal"));
+		Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".fsm"));
+		Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".meta"));
 		
 		executors.shutdown();
 		executors.awaitTermination(1, TimeUnit.MINUTES);
@@ -5,12 +5,26 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+import introdb.heap.codec.Codecs;
+import introdb.heap.engine.Compression;
+import introdb.heap.engine.IOMode;
+import introdb.heap.engine.Options;
+import introdb.heap.engine.StorageEngine;
+import introdb.heap.engine.TransactionConflictException;
+import introdb.heap.utils.SerializationUtils;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -29,7 +43,14 @@ class UnorderedHeapFileTest {
 	
 	@AfterEach
 	public void tearDown() throws IOException {
+		heapFile.close();
 		Files.delete(heapFilePath);
+		Files.deleteIfExists(indexFilePath());
+		Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".wal"));
+		Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".fsm"));
+		Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".hidx"));
+		Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".bloom"));
+		Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".meta"));
 	}
 
 	@Test
@@ -140,24 +161,778 @@ class UnorderedHeapFileTest {
 	}
 	
 	@Test
-	void throw_exception_when_entry_too_large() throws ClassNotFoundException, IOException {
+	void throw_exception_when_key_too_large() throws ClassNotFoundException, IOException {
 
 		// given
-		byte[] value = new byte[4*1024];
-		new Random().nextBytes(value);
+		byte[] key = new byte[4*1024];
+		new Random().nextBytes(key);
 
 		// when
 		
 		assertThatThrownBy(() -> {
-			heapFile.put(new Entry("0",value ));
+			heapFile.put(new Entry(key,"value" ));
 		})
 		.isInstanceOf(IllegalArgumentException.class);
 
 	}
+
+	@Test
+	void put_and_get_values_larger_than_page() throws ClassNotFoundException, IOException {
+
+		// given
+		byte[] value = new byte[100*1024];
+		new Random().nextBytes(value);
+
+		// when
+		for(int i=0;i<10;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		heapFile.close();
+		var heapFileSize = Files.size(heapFilePath);
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+		for(int i=0;i<10;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		heapFile.remove("0");
+		heapFile.close();
+
+		// then
+		// new value is written before old one is freed, then next value reuses freed pages
+		assertTrue(Files.size(heapFilePath) <= heapFileSize + value.length + 2*4*1024);
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+		assertNull(heapFile.get("0"));
+		for(int i=1;i<10;i++) {
+			assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+		}
+	}
 	
+	@Test
+	void reuse_space_of_removed_records() throws IOException, ClassNotFoundException {
+
+		// given
+		byte[] value = new byte[256];
+		new Random().nextBytes(value);
+
+		for(int i=0;i<1000;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		heapFile.close();
+		var heapFileSize = Files.size(heapFilePath);
+
+		// when
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+		for(int round=0;round<5;round++) {
+			for(int i=0;i<1000;i+=2) {
+				heapFile.remove(Integer.toString(i));
+			}
+			for(int i=0;i<1000;i+=2) {
+				heapFile.put(new Entry(Integer.toString(i),value ));
+			}
+		}
+		heapFile.close();
+
+		// then
+		assertTrue(Files.size(heapFilePath) <= heapFileSize + 4*1024);
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+		for(int i=0;i<1000;i++) {
+			assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+		}
+
+	}
+
+	@Test
+	void put_all_get_all_and_remove_all_records() throws IOException, ClassNotFoundException {
+
+		// given
+		var entries = new ArrayList<Entry>();
+		var keys = new ArrayList<String>();
+		for(int i=0;i<1000;i++) {
+			entries.add(newEntry(Integer.toString(i), "value" + i));
+			keys.add(Integer.toString(i));
+		}
+		heapFile.put(newEntry("0", "old value"));
+
+		// when
+		heapFile.putAll(entries);
+		var removed = heapFile.removeAll(List.of("1", "2", "missing"));
+
+		// then
+		assertEquals(Arrays.asList("value1", "value2", null), removed);
+		var values = heapFile.getAll(keys);
+		for(int i=0;i<1000;i++) {
+			assertEquals(i == 1 || i == 2 ? null : "value" + i, values.get(i));
+		}
+		assertEquals("value0", heapFile.get("0"));
+	}
+
+	@Test
+	void reopen_store_and_get_records() throws IOException, ClassNotFoundException {
+
+		// given
+		byte[] value = new byte[256];
+		new Random().nextBytes(value);
+
+		for(int i=0;i<100;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		heapFile.remove("0");
+
+		// when
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+		heapFile.put(new Entry("100",value ));
+
+		// then
+		assertNull(heapFile.get("0"));
+		for(int i=1;i<=100;i++) {
+			assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+		}
+
+	}
+
+	@Test
+	void reopen_memory_mapped_store_and_get_records() throws IOException, ClassNotFoundException {
+
+		// given
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withIOMode(IOMode.MEMORY_MAPPED));
+
+		byte[] value = new byte[256];
+		new Random().nextBytes(value);
+
+		for(int i=0;i<100;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+
+		// when
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withIOMode(IOMode.MEMORY_MAPPED));
+
+		// then
+		for(int i=0;i<100;i++) {
+			assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+		}
+
+	}
+
+	@Test
+	void keep_records_put_after_reopen_of_memory_mapped_store_with_empty_pages_at_the_end() throws IOException, ClassNotFoundException {
+
+		// given
+		var options = Options.defaults().withIOMode(IOMode.MEMORY_MAPPED).withCompactionInterval(0);
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		byte[] value = new byte[256];
+		new Random().nextBytes(value);
+
+		for(int i=0;i<150;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		for(int i=100;i<150;i++) {
+			heapFile.remove(Integer.toString(i));
+		}
+		heapFile.close();
+
+		// when
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+		for(int i=1000;i<1300;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		// then
+		for(int i=0;i<100;i++) {
+			assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+		}
+		for(int i=1000;i<1300;i++) {
+			assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+		}
+
+	}
+
+	@Test
+	void reopen_sharded_store_and_get_records() throws IOException, ClassNotFoundException {
+
+		// given
+		var options = Options.defaults().withShards(4);
+		heapFile.close();
+		Files.delete(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".meta"));
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		try {
+			for(int i=0;i<200;i++) {
+				heapFile.put(new Entry(Integer.toString(i),"value" + i));
+			}
+			heapFile.removeAll(List.of("0", "1"));
+
+			// when
+			heapFile.close();
+			heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+			// then
+			assertNull(heapFile.get("0"));
+			assertNull(heapFile.get("1"));
+			for(int i=2;i<200;i++) {
+				assertEquals("value" + i, heapFile.get(Integer.toString(i)));
+			}
+			for(int shard=0;shard<4;shard++) {
+				assertTrue(Files.size(heapFilePath.resolveSibling(heapFilePath.getFileName() + "." + shard)) > 0);
+			}
+		} finally {
+			heapFile.close();
+			Files.delete(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".meta"));
+			heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+			for(int shard=0;shard<4;shard++) {
+				var shardPath = heapFilePath.resolveSibling(heapFilePath.getFileName() + "." + shard);
+				for (var suffix : new String[] {"", ".idx", ".wal", ".fsm", ".meta"}) {
+					Files.deleteIfExists(shardPath.resolveSibling(shardPath.getFileName() + suffix));
+				}
+			}
+		}
+	}
+
+	@Test
+	void refuse_store_with_other_number_of_shards() throws IOException, ClassNotFoundException {
+
+		// given
+		heapFile.close();
+		Files.delete(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".meta"));
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withShards(2));
+
+		try {
+			heapFile.put(newEntry("1", "value1"));
+			heapFile.close();
+
+			// then
+			assertThatThrownBy(() -> new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withShards(4)))
+				.isInstanceOf(IOException.class)
+				.hasMessageContaining("shards");
+			assertThatThrownBy(() -> new UnorderedHeapFile(heapFilePath, 1024, 4*1024))
+				.isInstanceOf(IOException.class)
+				.hasMessageContaining("shards");
+
+			heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withShards(2));
+			assertEquals("value1", heapFile.get("1"));
+		} finally {
+			heapFile.close();
+			Files.delete(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".meta"));
+			heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+			for(int shard=0;shard<4;shard++) {
+				var shardPath = heapFilePath.resolveSibling(heapFilePath.getFileName() + "." + shard);
+				for (var suffix : new String[] {"", ".idx", ".wal", ".fsm", ".meta"}) {
+					Files.deleteIfExists(shardPath.resolveSibling(shardPath.getFileName() + suffix));
+				}
+			}
+		}
+	}
+
+	@Test
+	void put_records_concurrently_into_tail_pages() throws Exception {
+
+		// given
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withTailPages(4));
+		var executor = Executors.newFixedThreadPool(8);
+
+		// when
+		try {
+			var tasks = new ArrayList<Callable<Object>>();
+			for(int thread=0;thread<8;thread++) {
+				var offset = thread * 250;
+				tasks.add(() -> {
+					for(int i=offset;i<offset+250;i++) {
+						heapFile.put(new Entry(Integer.toString(i),"value" + i));
+					}
+					return null;
+				});
+			}
+			for (var future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+
+		// then
+		for(int i=0;i<2000;i++) {
+			assertEquals("value" + i, heapFile.get(Integer.toString(i)));
+		}
+	}
+
+	@Test
+	void keep_single_record_of_key_put_concurrently() throws Exception {
+
+		// given
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withTailPages(8));
+		var executor = Executors.newFixedThreadPool(8);
+
+		// when
+		try {
+			var tasks = new ArrayList<Callable<Object>>();
+			for(int thread=0;thread<8;thread++) {
+				tasks.add(() -> {
+					for(int round=0;round<10;round++) {
+						for(int i=0;i<100;i++) {
+							heapFile.put(new Entry(Integer.toString(i),"value" + i));
+						}
+					}
+					return null;
+				});
+			}
+			for (var future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		for(int i=0;i<100;i++) {
+			heapFile.remove(Integer.toString(i));
+		}
+		heapFile.close();
+		Files.delete(indexFilePath());
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+
+		// then
+		for(int i=0;i<100;i++) {
+			assertNull(heapFile.get(Integer.toString(i)));
+		}
+	}
+
+	@Test
+	void reopen_store_with_off_heap_index() throws IOException, ClassNotFoundException {
+
+		// given
+		var options = Options.defaults().withOffHeapIndex(true);
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+		for(int i=0;i<1000;i++) {
+			heapFile.put(newEntry(Integer.toString(i), "value" + i));
+		}
+		heapFile.remove("0");
+		heapFile.close();
+
+		// when
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+		heapFile.put(newEntry("1", "new value"));
+
+		// then
+		assertNull(heapFile.get("0"));
+		assertNull(heapFile.remove("1000"));
+		assertEquals("new value", heapFile.get("1"));
+		for(int i=2;i<1000;i++) {
+			assertEquals("value" + i, heapFile.get(Integer.toString(i)));
+		}
+		assertTrue(Files.notExists(indexFilePath()));
+	}
+
+	@Test
+	void skip_pages_without_key_with_bloom_filters() throws IOException, ClassNotFoundException {
+
+		// given
+		var options = Options.defaults().withOffHeapIndex(true).withBloomFilter(10);
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+		for(int i=0;i<1000;i++) {
+			heapFile.put(newEntry(Integer.toString(i), "value" + i));
+		}
+		heapFile.remove("0");
+		heapFile.close();
+		Files.delete(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".bloom"));
+
+		// when
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+		heapFile.put(newEntry("1", "new value"));
+		heapFile.put(newEntry("1000", "value1000"));
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		// then
+		assertNull(heapFile.get("0"));
+		assertNull(heapFile.remove("1001"));
+		assertEquals("new value", heapFile.get("1"));
+		for(int i=2;i<=1000;i++) {
+			assertEquals("value" + i, heapFile.get(Integer.toString(i)));
+		}
+		assertTrue(Files.exists(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".bloom")));
+	}
+
+	@Test
+	void size_bloom_filters_by_keys_not_by_puts() throws IOException, ClassNotFoundException {
+
+		// given
+		var options = Options.defaults().withOffHeapIndex(true).withBloomFilter(10);
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		// when
+		for(int round=0;round<5000;round++) {
+			for(int i=0;i<10;i++) {
+				heapFile.put(newEntry(Integer.toString(i), "value" + round));
+			}
+		}
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		// then
+		for(int i=0;i<10;i++) {
+			assertEquals("value4999", heapFile.get(Integer.toString(i)));
+		}
+		assertTrue(Files.size(heapFilePath.resolveSibling(heapFilePath.getFileName() + ".bloom")) < 4*1024);
+	}
+
+	@Test
+	void find_keys_put_while_bloom_filters_were_disabled() throws IOException, ClassNotFoundException {
+
+		// given
+		var options = Options.defaults().withOffHeapIndex(true).withBloomFilter(10);
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+		for(int i=0;i<100;i++) {
+			heapFile.put(newEntry(Integer.toString(i), "value" + i));
+		}
+		heapFile.close();
+		var bloomFilePath = heapFilePath.resolveSibling(heapFilePath.getFileName() + ".bloom");
+		var staleFilters = Files.readAllBytes(bloomFilePath);
+
+		// when
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withOffHeapIndex(true));
+		for(int i=100;i<200;i++) {
+			heapFile.put(newEntry(Integer.toString(i), "value" + i));
+		}
+		heapFile.close();
+		// filters file left by older version, which didn't delete it
+		Files.write(bloomFilePath, staleFilters);
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		// then
+		for(int i=0;i<200;i++) {
+			assertEquals("value" + i, heapFile.get(Integer.toString(i)));
+		}
+	}
+
+	@Test
+	void refuse_store_of_other_format_version() throws IOException, ClassNotFoundException {
+
+		// given
+		heapFile.put(newEntry("1", "value1"));
+		heapFile.close();
+		var metadataPath = heapFilePath.resolveSibling(heapFilePath.getFileName() + ".meta");
+		var metadata = Files.readAllBytes(metadataPath);
+		var current = metadata.clone();
+		metadata[7]++;
+		Files.write(metadataPath, metadata);
+
+		// then
+		assertThatThrownBy(() -> new UnorderedHeapFile(heapFilePath, 1024, 4*1024))
+			.isInstanceOf(IOException.class)
+			.hasMessageContaining("format version");
+
+		Files.delete(metadataPath);
+		assertThatThrownBy(() -> new UnorderedHeapFile(heapFilePath, 1024, 4*1024))
+			.isInstanceOf(IOException.class)
+			.hasMessageContaining("no format version");
+
+		Files.write(metadataPath, current);
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+		assertEquals("value1", heapFile.get("1"));
+	}
+
+	@Test
+	void commit_changes_of_transaction_at_once() throws IOException, ClassNotFoundException {
+
+		// given
+		heapFile.put(newEntry("1", "value1"));
+		heapFile.put(newEntry("2", "value2"));
+
+		// when
+		try (var transaction = heapFile.begin()) {
+			transaction.put(newEntry("1", "new value1"));
+			transaction.remove("2");
+			transaction.put(newEntry("3", "value3"));
+
+			assertEquals("new value1", transaction.get("1"));
+			assertNull(transaction.get("2"));
+			assertEquals("value2", heapFile.get("2"));
+			assertNull(heapFile.get("3"));
+
+			transaction.commit();
+		}
+		try (var transaction = heapFile.begin()) {
+			transaction.put(newEntry("4", "value4"));
+			transaction.rollback();
+		}
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+
+		// then
+		assertEquals("new value1", heapFile.get("1"));
+		assertNull(heapFile.get("2"));
+		assertEquals("value3", heapFile.get("3"));
+		assertNull(heapFile.get("4"));
+	}
+
+	@Test
+	void fail_commit_of_transaction_when_key_was_changed_meanwhile() throws IOException, ClassNotFoundException {
+
+		// given
+		heapFile.put(newEntry("1", "value1"));
+		var transaction = heapFile.begin();
+		transaction.put(newEntry("1", "value from transaction"));
+		transaction.put(newEntry("2", "value2"));
+
+		// when
+		heapFile.put(newEntry("1", "value from writer"));
+
+		// then
+		assertThatThrownBy(transaction::commit).isInstanceOf(TransactionConflictException.class);
+		assertEquals("value from writer", heapFile.get("1"));
+		assertNull(heapFile.get("2"));
+		assertThatThrownBy(transaction::commit).isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void find_records_java_serialized_before_codecs_were_added() throws IOException, ClassNotFoundException {
+
+		// given
+		heapFile.close();
+		var engine = StorageEngine.of(heapFilePath, 1024, 4*1024, Options.defaults());
+		engine.put(SerializationUtils.serialize("1"), SerializationUtils.serialize("value1"));
+		engine.close();
+
+		// when
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+
+		// then
+		assertEquals("value1", heapFile.get("1"));
+		assertEquals("value1", heapFile.remove("1"));
+	}
+
+	@Test
+	void put_and_get_records_with_custom_codecs() throws IOException, ClassNotFoundException {
+
+		// given
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults(), Codecs.ints(), Codecs.strings());
+
+		// when
+		for(int i=0;i<100;i++) {
+			heapFile.put(newEntry(i, "value" + i));
+		}
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults(), Codecs.ints(), Codecs.strings());
+
+		// then
+		for(int i=0;i<100;i++) {
+			assertEquals("value" + i, heapFile.get(i));
+		}
+		assertEquals("value0", heapFile.remove(0));
+		assertNull(heapFile.get(0));
+	}
+
+	@Test
+	void put_and_get_compressed_records() throws IOException, ClassNotFoundException {
+
+		// given
+		var samples = new ArrayList<byte[]>();
+		for(int i=0;i<100;i++) {
+			samples.add(json(i).getBytes());
+		}
+		var compression = Compression.dictionary(Compression.trainDictionary(samples, 1024));
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withCompression(compression), Codecs.ints(), Codecs.tagged());
+
+		// when
+		for(int i=0;i<1000;i++) {
+			heapFile.put(newEntry(i, json(i)));
+		}
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, Options.defaults().withCompression(compression), Codecs.ints(), Codecs.tagged());
+
+		// then
+		for(int i=0;i<1000;i++) {
+			assertEquals(json(i), heapFile.get(i));
+		}
+		assertEquals(json(0), heapFile.remove(0));
+		assertNull(heapFile.get(0));
+		assertTrue(Files.size(heapFilePath) < 1000 * json(0).length() * 2 / 3);
+	}
+
+	@Test
+	void replay_log_when_store_was_not_closed() throws IOException, ClassNotFoundException {
+
+		// given
+		byte[] value = new byte[256];
+		new Random().nextBytes(value);
+
+		for(int i=0;i<100;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		heapFile.remove("0");
+
+		// when
+		var crashed = Files.createTempDirectory("crash");
+		var crashedPath = copyFilesAsAfterCrash(crashed);
+		heapFile.close();
+		assertTrue(Files.size(crashedPath.resolveSibling(crashedPath.getFileName() + ".wal")) > 0);
+		heapFile = new UnorderedHeapFile(crashedPath, 1024, 4*1024);
+
+		// then
+		try {
+			assertNull(heapFile.get("0"));
+			for(int i=1;i<100;i++) {
+				assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+			}
+		} finally {
+			heapFile.close();
+			heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+			try (var files = Files.list(crashed)) {
+				for (var file : (Iterable<Path>) files::iterator) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(crashed);
+		}
+	}
+
+	@Test
+	void free_overflow_pages_orphaned_by_crash() throws IOException, ClassNotFoundException {
+
+		// given
+		var options = Options.defaults().withCacheSize(4).withCompactionInterval(0);
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+		byte[] value = new byte[100*1024];
+		new Random().nextBytes(value);
+
+		// chain pages are evicted to the heap file, tail page with pointer to the chain isn't
+		heapFile.put(new Entry("0", value));
+
+		// when
+		var crashed = Files.createTempDirectory("crash");
+		var crashedPath = copyFilesAsAfterCrash(crashed);
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(crashedPath, 1024, 4*1024, options);
+
+		// then
+		try {
+			assertArrayEquals(value, (byte[])heapFile.get("0"));
+			heapFile.put(new Entry("1", value));
+			heapFile.close();
+			var heapFileSize = Files.size(crashedPath);
+			heapFile = new UnorderedHeapFile(crashedPath, 1024, 4*1024, options);
+			// second value reuses pages of the chain left without pointer by crash
+			assertTrue(heapFileSize <= 2 * value.length + 8*4*1024);
+			assertArrayEquals(value, (byte[])heapFile.get("0"));
+			assertArrayEquals(value, (byte[])heapFile.get("1"));
+		} finally {
+			heapFile.close();
+			heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+			try (var files = Files.list(crashed)) {
+				for (var file : (Iterable<Path>) files::iterator) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(crashed);
+		}
+	}
+
+	@Test
+	void rebuild_index_when_index_file_is_missing() throws IOException, ClassNotFoundException {
+
+		// given
+		byte[] value = new byte[256];
+		new Random().nextBytes(value);
+
+		for(int i=0;i<100;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		heapFile.remove("0");
+		heapFile.close();
+
+		// when
+		Files.delete(indexFilePath());
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+
+		// then
+		assertNull(heapFile.get("0"));
+		for(int i=1;i<100;i++) {
+			assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+		}
+
+	}
+
+	@Test
+	void keep_records_put_after_index_with_empty_pages_at_the_end_was_rebuilt() throws IOException, ClassNotFoundException {
+
+		// given
+		var options = Options.defaults().withCompactionInterval(0);
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		byte[] value = new byte[256];
+		new Random().nextBytes(value);
+
+		for(int i=0;i<150;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		for(int i=100;i<150;i++) {
+			heapFile.remove(Integer.toString(i));
+		}
+		heapFile.close();
+
+		// when
+		Files.delete(indexFilePath());
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+		for(int i=1000;i<1300;i++) {
+			heapFile.put(new Entry(Integer.toString(i),value ));
+		}
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		// then
+		for(int i=0;i<100;i++) {
+			assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+		}
+		for(int i=1000;i<1300;i++) {
+			assertArrayEquals(value,(byte[])heapFile.get(Integer.toString(i)));
+		}
+
+	}
+
+	/**
+	 * Copies files of open store, as they would be left by crash, store is closed by caller.
+	 *
+	 * @return heap file path of the copy
+	 */
+	private Path copyFilesAsAfterCrash(Path directory) throws IOException {
+		var fileName = heapFilePath.getFileName().toString();
+		try (var files = Files.list(heapFilePath.getParent())) {
+			for (var file : (Iterable<Path>) files::iterator) {
+				var name = file.getFileName().toString();
+				if (name.equals(fileName) || name.startsWith(fileName + ".")) {
+					Files.copy(file, directory.resolve(name));
+				}
+			}
+		}
+		return directory.resolve(fileName);
+	}
+
+	private Path indexFilePath() {
+		return heapFilePath.resolveSibling(heapFilePath.getFileName() + ".idx");
+	}
+
 	private Entry newEntry(Serializable firstkey, Serializable firstvalue) {
 		Entry entry = new Entry(firstkey,firstvalue);
 		return entry;
 	}
 
+	private static String json(int i) {
+		return "{\"id\": " + i + ", \"name\": \"customer" + i + "\", \"email\": \"customer" + i
+				+ "@example.com\", \"status\": \"active\", \"tags\": [\"retail\", \"newsletter\"]}";
+	}
 }
@@ -0,0 +1,74 @@
+package introdb.heap.codec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import introdb.heap.utils.SerializationUtils;
+
+class CodecsTest {
+
+	@Test
+	void encode_and_decode_tagged_values() throws Exception {
+		var codec = Codecs.tagged();
+
+		for (var value : List.of("value", 1, 1L, (short) 1, (byte) 1, true, 1.5d, 1.5f, 'c', LocalDate.of(2019, 1, 1))) {
+			assertEquals(value, codec.decode(codec.encode(value)));
+		}
+		assertArrayEquals(new byte[] {1, 2}, (byte[]) codec.decode(codec.encode(new byte[] {1, 2})));
+		assertNull(codec.decode(codec.encode(null)));
+	}
+
+	@Test
+	void encode_int_much_smaller_than_java_serialization() throws Exception {
+		assertEquals(5, Codecs.tagged().encode(1).length);
+		assertTrue(SerializationUtils.serialize(1).length > 50);
+	}
+
+	@Test
+	void encode_copy_of_byte_array() throws Exception {
+		var value = new byte[] {1, 2};
+		var encoded = Codecs.bytes().encode(value);
+		value[0] = 3;
+
+		assertArrayEquals(new byte[] {1, 2}, encoded);
+	}
+
+	@Test
+	void decode_java_serialized_value_with_tagged_codec() throws Exception {
+		assertEquals("value", Codecs.tagged().decode(SerializationUtils.serialize("value")));
+		assertEquals(1, Codecs.tagged().decode(SerializationUtils.serialize(1)));
+	}
+
+	@Test
+	void encode_and_decode_object_with_tuple_schema() throws Exception {
+		var codec = Codecs.tuple(Codecs.ints(), Codecs.strings(), Codecs.doubles())
+				.map((Point point) -> new Object[] {point.id, point.name, point.weight},
+						fields -> new Point((Integer) fields[0], (String) fields[1], (Double) fields[2]));
+
+		var point = codec.decode(codec.encode(new Point(7, "seven", 7.5)));
+
+		assertEquals(7, point.id);
+		assertEquals("seven", point.name);
+		assertEquals(7.5, point.weight);
+		assertEquals(4 + 5 + 8 + 3, codec.encode(point).length);
+	}
+
+	private static class Point {
+		private final int id;
+		private final String name;
+		private final double weight;
+
+		Point(int id, String name, double weight) {
+			this.id = id;
+			this.name = name;
+			this.weight = weight;
+		}
+	}
+}
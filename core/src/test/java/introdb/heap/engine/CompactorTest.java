@@ -0,0 +1,145 @@
+package introdb.heap.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import introdb.heap.lock.LockManager;
+
+class CompactorTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+
+	private Path heapFilePath;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		Files.delete(heapFilePath);
+		for (var suffix : new String[] {".idx", ".wal", ".fsm", ".meta"}) {
+			Files.deleteIfExists(heapFilePath.resolveSibling(heapFilePath.getFileName() + suffix));
+		}
+	}
+
+	@Test
+	void move_records_and_truncate_file() throws IOException {
+		var engine = open();
+		for (int i = 0; i < 1000; i++) {
+			engine.put(key(i), new byte[100]);
+		}
+		// leave every tenth record, so all pages are sparse
+		for (int i = 0; i < 1000; i++) {
+			if (i % 10 != 0) {
+				engine.remove(key(i));
+			}
+		}
+		engine.checkpoint();
+		var sizeBefore = Files.size(heapFilePath);
+
+		assertTrue(engine.compact() > 0);
+		engine.close();
+
+		assertTrue(Files.size(heapFilePath) < sizeBefore / 4);
+		engine = open();
+		for (int i = 0; i < 1000; i++) {
+			if (i % 10 == 0) {
+				assertArrayEquals(new byte[100], engine.get(key(i)).value());
+			} else {
+				assertNull(engine.get(key(i)));
+			}
+		}
+		engine.close();
+	}
+
+	@Test
+	void append_after_truncate() throws IOException {
+		var engine = open();
+		for (int i = 0; i < 100; i++) {
+			engine.put(key(i), new byte[100]);
+		}
+		for (int i = 1; i < 100; i++) {
+			engine.remove(key(i));
+		}
+
+		assertTrue(engine.compact() > 0);
+		for (int i = 100; i < 200; i++) {
+			engine.put(key(i), new byte[100]);
+		}
+		engine.close();
+
+		engine = open();
+		assertArrayEquals(new byte[100], engine.get(key(0)).value());
+		for (int i = 100; i < 200; i++) {
+			assertArrayEquals(new byte[100], engine.get(key(i)).value());
+		}
+		engine.close();
+	}
+
+	@Test
+	void move_records_while_they_are_written() throws Exception {
+		var engine = open();
+		for (int i = 0; i < 1000; i++) {
+			engine.put(key(i), value(0));
+		}
+		for (int i = 0; i < 1000; i++) {
+			if (i % 10 != 0) {
+				engine.remove(key(i));
+			}
+		}
+
+		var writer = Executors.newSingleThreadExecutor();
+		var rounds = writer.submit(() -> {
+			for (int round = 1; round <= 20; round++) {
+				for (int i = 0; i < 1000; i += 10) {
+					engine.put(key(i), value(round));
+				}
+			}
+			return null;
+		});
+		try {
+			while (!rounds.isDone()) {
+				engine.compact();
+			}
+			rounds.get();
+		} finally {
+			writer.shutdown();
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		engine.compact();
+		engine.close();
+
+		var reopened = open();
+		for (int i = 0; i < 1000; i += 10) {
+			assertArrayEquals(value(20), reopened.get(key(i)).value());
+		}
+		reopened.close();
+	}
+
+	private Engine open() throws IOException {
+		return Engine.of(new LockManager(), heapFilePath, 1024, PAGE_SIZE, Options.defaults().withCompactionInterval(0));
+	}
+
+	private static byte[] value(int round) {
+		var value = new byte[100];
+		value[0] = (byte) round;
+		return value;
+	}
+
+	private static byte[] key(int i) {
+		return ("key" + i).getBytes();
+	}
+}
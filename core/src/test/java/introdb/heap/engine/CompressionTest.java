@@ -0,0 +1,38 @@
+package introdb.heap.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+class CompressionTest {
+
+	@Test
+	void compress_with_different_dictionaries_in_one_thread() {
+		var samples = new ArrayList<byte[]>();
+		for (int i = 0; i < 100; i++) {
+			samples.add(json(i).getBytes());
+		}
+		var withDictionary = Compression.dictionary(Compression.trainDictionary(samples, 1024));
+		var withoutDictionary = Compression.fast();
+
+		for (int i = 0; i < 10; i++) {
+			var value = (json(i) + json(i + 1)).getBytes();
+			var compressedWithDictionary = withDictionary.compress(value);
+			var compressed = withoutDictionary.compress(value);
+			assertNotNull(compressedWithDictionary);
+			assertNotNull(compressed);
+
+			assertArrayEquals(value, withDictionary.decompress(compressedWithDictionary));
+			assertArrayEquals(value, withoutDictionary.decompress(compressed));
+			assertThrows(IllegalStateException.class, () -> withoutDictionary.decompress(compressedWithDictionary));
+		}
+	}
+
+	private static String json(int i) {
+		return "{\"id\":" + i + ",\"name\":\"name" + i + "\",\"email\":\"user" + i + "@example.com\",\"active\":true}";
+	}
+}
@@ -0,0 +1,80 @@
+package introdb.heap.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MappedIOControllerTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+
+	private Path heapFilePath;
+	private IOController ioController;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+		ioController = IOController.of(heapFilePath, 1024, PAGE_SIZE, IOMode.MEMORY_MAPPED);
+		ioController.init();
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		Files.delete(heapFilePath);
+	}
+
+	@Test
+	void read_written_page() throws IOException {
+		var key = new byte[] {1};
+		var value = new byte[] {2, 3};
+
+		ioController.write(Page.of(3, PAGE_SIZE, Record.of(key, value, PAGE_SIZE)));
+
+		assertArrayEquals(value, ioController.findPage(3).getRecord(key).value());
+		assertTrue(ioController.findPage(2).isEmpty());
+		assertEquals(4, ioController.nrOfPages());
+		ioController.close();
+	}
+
+	@Test
+	void write_page_beyond_max_number_of_pages() throws IOException {
+		var key = new byte[] {1};
+		var value = new byte[] {2, 3};
+		// first page of the second segment, only one segment is expected for max number of pages
+		var pageNo = 64 * 1024 * 1024 / PAGE_SIZE;
+
+		ioController.write(Page.of(pageNo, PAGE_SIZE, Record.of(key, value, PAGE_SIZE)));
+		ioController.close();
+
+		ioController = IOController.of(heapFilePath, 1024, PAGE_SIZE, IOMode.MEMORY_MAPPED);
+		ioController.init();
+		assertEquals(pageNo + 1, ioController.nrOfPages());
+		assertArrayEquals(value, ioController.findPage(pageNo).getRecord(key).value());
+		ioController.close();
+	}
+
+	@Test
+	void truncate_file_to_last_written_page_on_close() throws IOException {
+		var key = new byte[] {1};
+		var value = new byte[] {2, 3};
+
+		ioController.write(Page.of(1, PAGE_SIZE, Record.of(key, value, PAGE_SIZE)));
+		ioController.close();
+
+		assertEquals(2 * PAGE_SIZE, Files.size(heapFilePath));
+
+		ioController = IOController.of(heapFilePath, 1024, PAGE_SIZE, IOMode.MEMORY_MAPPED);
+		ioController.init();
+		assertArrayEquals(value, ioController.findPage(1).getRecord(key).value());
+		ioController.close();
+	}
+
+}
@@ -0,0 +1,83 @@
+package introdb.heap.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class OffHeapIndexTest {
+
+	private Path heapFilePath;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		Files.delete(heapFilePath);
+		Files.deleteIfExists(OffHeapIndex.path(heapFilePath));
+	}
+
+	@Test
+	void put_move_and_remove_keys_while_segments_grow() {
+		var index = OffHeapIndex.of(heapFilePath);
+		for (int i = 0; i < 100_000; i++) {
+			index.put(key(i), i / 10);
+		}
+		for (int i = 0; i < 100_000; i += 2) {
+			index.remove(key(i), i / 10);
+		}
+		for (int i = 1; i < 100_000; i += 4) {
+			index.move(key(i), i / 10, 20_000);
+		}
+
+		assertEquals(50_000, index.size());
+		for (int i = 0; i < 100_000; i++) {
+			var expected = i % 2 == 0 ? -1 : i % 4 == 1 ? 20_000 : i / 10;
+			assertEquals(expected, index.get(key(i), pageNo -> true));
+		}
+	}
+
+	@Test
+	void ask_which_page_holds_key_when_hash_is_in_more_pages() {
+		var index = OffHeapIndex.of(heapFilePath);
+		index.restore(key(1), 3);
+		index.restore(key(1), 7);
+
+		assertEquals(7, index.get(key(1), pageNo -> pageNo == 7));
+		assertEquals(-1, index.get(key(1), pageNo -> false));
+
+		index.remove(key(1), 3);
+
+		assertEquals(7, index.get(key(1), pageNo -> false));
+	}
+
+	@Test
+	void load_index_written_by_checkpoint() throws IOException {
+		var index = OffHeapIndex.of(heapFilePath);
+		for (int i = 0; i < 10_000; i++) {
+			index.put(key(i), i);
+		}
+		index.checkpoint();
+
+		var loaded = OffHeapIndex.of(heapFilePath);
+		loaded.load();
+
+		assertEquals(10_000, loaded.size());
+		for (int i = 0; i < 10_000; i++) {
+			assertEquals(i, loaded.get(key(i), pageNo -> true));
+		}
+	}
+
+	private static byte[] key(int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+}
@@ -0,0 +1,123 @@
+package introdb.heap.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PageCacheTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+
+	private Path heapFilePath;
+	private IOController ioController;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+		ioController = IOController.of(heapFilePath, 1024, PAGE_SIZE);
+		ioController.init();
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		ioController.close();
+		Files.delete(heapFilePath);
+	}
+
+	@Test
+	void return_same_page_while_cached() {
+		var pageCache = new PageCache(ioController, EvictionPolicy.clock(), 2);
+
+		var page = pageCache.pin(0);
+		pageCache.unpin(page, false);
+
+		assertSame(page, pageCache.pin(0));
+	}
+
+	@Test
+	void write_dirty_page_when_evicted() {
+		var pageCache = new PageCache(ioController, EvictionPolicy.lru(), 1);
+
+		var page = Page.of(0, PAGE_SIZE, Record.of(new byte[] {1}, new byte[] {2}, PAGE_SIZE));
+		pageCache.pin(page);
+		pageCache.unpin(page, true);
+
+		pageCache.unpin(pageCache.pin(1), false);
+
+		assertFalse(pageCache.isCached(0));
+		assertNotNull(ioController.findPage(0).getRecord(new byte[] {1}));
+	}
+
+	@Test
+	void keep_pinned_page_when_discarded() {
+		var pageCache = new PageCache(ioController, EvictionPolicy.clock(), 2);
+
+		var page = pageCache.pin(0);
+
+		assertFalse(pageCache.discard(0));
+		assertTrue(pageCache.isCached(0));
+
+		pageCache.unpin(page, false);
+		assertTrue(pageCache.discard(0));
+		assertFalse(pageCache.isCached(0));
+	}
+
+	@Test
+	void dont_evict_pinned_page() {
+		var pageCache = new PageCache(ioController, EvictionPolicy.clock(), 1);
+
+		pageCache.pin(0);
+		var page = pageCache.pin(1);
+
+		assertEquals(2, pageCache.size());
+		assertTrue(pageCache.isCached(0));
+
+		pageCache.unpin(page, false);
+		assertEquals(1, pageCache.size());
+		assertTrue(pageCache.isCached(0));
+	}
+
+	@Test
+	void keep_pinned_pages_cached_while_pages_are_pinned_concurrently() throws Exception {
+		var pageCache = new PageCache(ioController, EvictionPolicy.clock(), 4);
+		var pool = Executors.newFixedThreadPool(4);
+		try {
+			var tasks = new ArrayList<Callable<Void>>();
+			for (int thread = 0; thread < 4; thread++) {
+				tasks.add(() -> {
+					var random = ThreadLocalRandom.current();
+					for (int i = 0; i < 10_000; i++) {
+						var pageNo = random.nextInt(16);
+						var page = pageCache.pin(pageNo);
+						assertEquals(pageNo, page.number());
+						assertTrue(pageCache.isCached(pageNo));
+						pageCache.unpin(page, false);
+					}
+					return null;
+				});
+			}
+			for (var result : pool.invokeAll(tasks)) {
+				result.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		assertTrue(pageCache.size() <= 4);
+	}
+
+}
@@ -0,0 +1,107 @@
+package introdb.heap.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+class PageTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+
+	@Test
+	void get_record_from_page_read_from_buffer() {
+		var page = Page.of(0, PAGE_SIZE);
+		page.addRecord(record(1, 100));
+		page.addRecord(record(2, 200));
+
+		var readPage = Page.of(0, PAGE_SIZE, page.toByteBuffer());
+
+		assertArrayEquals(new byte[200], readPage.getRecord(new byte[] {2}).value());
+		assertEquals(page.size(), readPage.size());
+	}
+
+	@Test
+	void reuse_space_of_removed_record() {
+		var page = Page.of(0, PAGE_SIZE);
+		var maxValueSize = Page.maxRecordSize(PAGE_SIZE) - Record.Header.SIZE - 1;
+
+		assertTrue(page.addRecord(record(1, maxValueSize)));
+		assertFalse(page.addRecord(record(2, 1)));
+
+		page.removeRecord(new byte[] {1});
+
+		assertTrue(page.isEmpty());
+		assertTrue(page.addRecord(record(2, maxValueSize)));
+		assertNull(page.getRecord(new byte[] {1}));
+	}
+
+	@Test
+	void compact_page_when_free_space_is_fragmented() {
+		var page = Page.of(0, PAGE_SIZE);
+		for (byte key = 0; key < 4; key++) {
+			assertTrue(page.addRecord(record(key, 900)));
+		}
+		page.removeRecord(new byte[] {0});
+		page.removeRecord(new byte[] {2});
+
+		assertTrue(page.addRecord(record(4, 1500)));
+
+		var readPage = Page.of(0, PAGE_SIZE, page.toByteBuffer());
+		assertArrayEquals(new byte[900], readPage.getRecord(new byte[] {1}).value());
+		assertArrayEquals(new byte[900], readPage.getRecord(new byte[] {3}).value());
+		assertArrayEquals(new byte[1500], readPage.getRecord(new byte[] {4}).value());
+	}
+
+	@Test
+	void read_records_while_page_is_modified() throws InterruptedException {
+		var page = Page.of(0, PAGE_SIZE);
+		page.addRecord(record(1, 100));
+
+		// writer keeps moving records around by removing, adding and compacting
+		var writer = new Thread(() -> {
+			for (int i = 0; i < 10_000; i++) {
+				page.addRecord(record(2, i % 1000));
+				page.removeRecord(new byte[] {2});
+				page.vacuum();
+			}
+		});
+		writer.start();
+		while (writer.isAlive()) {
+			assertArrayEquals(new byte[100], page.getRecord(new byte[] {1}).value());
+		}
+		writer.join();
+	}
+
+	@Test
+	void find_records_with_same_key_fingerprint() {
+		var page = Page.of(0, PAGE_SIZE);
+		var fingerprint = Record.fingerprint(new byte[] {0, 0});
+		var keys = new ArrayList<byte[]>();
+		for (int i = 0; i < 65536 && keys.size() < 10; i++) {
+			var key = new byte[] {(byte) (i >>> 8), (byte) i};
+			if (Record.fingerprint(key) == fingerprint) {
+				keys.add(key);
+				page.addRecord(Record.of(key, new byte[] {(byte) keys.size()}));
+			}
+		}
+		page.removeRecord(keys.get(0));
+
+		var readPage = Page.of(0, PAGE_SIZE, page.toByteBuffer());
+
+		assertNull(readPage.getRecord(keys.get(0)));
+		for (int i = 1; i < keys.size(); i++) {
+			assertArrayEquals(new byte[] {(byte) (i + 1)}, readPage.getRecord(keys.get(i)).value());
+		}
+		assertFalse(readPage.contains(new byte[] {1, 2, 3}));
+	}
+
+	private static Record record(int key, int valueSize) {
+		return Record.of(new byte[] {(byte) key}, new byte[valueSize]);
+	}
+}
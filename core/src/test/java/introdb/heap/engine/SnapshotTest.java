@@ -0,0 +1,248 @@
+package introdb.heap.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SnapshotTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+
+	private Path heapFilePath;
+	private StorageEngine engine;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		engine.close();
+		for (var path : List.of(heapFilePath, ShardedEngine.shardPath(heapFilePath, 0), ShardedEngine.shardPath(heapFilePath, 1))) {
+			Files.deleteIfExists(path);
+			for (var suffix : new String[] {".idx", ".wal", ".fsm", ".meta"}) {
+				Files.deleteIfExists(path.resolveSibling(path.getFileName() + suffix));
+			}
+		}
+	}
+
+	@Test
+	void read_values_as_they_were_when_snapshot_was_opened() throws IOException {
+		engine = open(1);
+		for (int i = 0; i < 100; i++) {
+			engine.put(key(i), value(i));
+		}
+
+		try (var snapshot = engine.snapshot()) {
+			engine.put(key(0), value(1000));
+			engine.remove(key(1));
+			engine.put(key(100), value(100));
+			engine.putAll(List.of(Map.entry(key(0), value(2000)), Map.entry(key(2), value(2000))));
+			engine.removeAll(List.of(key(3), key(4)));
+
+			assertArrayEquals(value(0), snapshot.get(key(0)).value());
+			assertArrayEquals(value(1), snapshot.get(key(1)).value());
+			assertNull(snapshot.get(key(100)));
+			var records = snapshot.getAll(List.of(key(2), key(3), key(100)));
+			assertArrayEquals(value(2), records.get(0).value());
+			assertArrayEquals(value(3), records.get(1).value());
+			assertNull(records.get(2));
+
+			assertArrayEquals(value(2000), engine.get(key(0)).value());
+			assertNull(engine.get(key(1)));
+		}
+	}
+
+	@Test
+	void scan_snapshot_of_sharded_engine() throws IOException {
+		engine = open(2);
+		for (int i = 0; i < 1000; i++) {
+			engine.put(key(i), value(i));
+		}
+
+		var snapshot = engine.snapshot();
+		for (int i = 0; i < 1000; i += 2) {
+			engine.remove(key(i));
+		}
+		engine.put(key(1000), value(1000));
+
+		var scan = snapshot.scan(null, null);
+		var expected = 0;
+		while (scan.hasNext()) {
+			var record = scan.next();
+			assertEquals(expected, ByteBuffer.wrap(record.key()).getInt());
+			assertArrayEquals(value(expected), record.value());
+			expected++;
+		}
+		assertEquals(1000, expected);
+
+		snapshot.close();
+		assertThrows(IllegalStateException.class, () -> snapshot.get(key(0)));
+		try (var later = engine.snapshot()) {
+			assertNull(later.get(key(0)));
+			assertArrayEquals(value(1000), later.get(key(1000)).value());
+		}
+	}
+
+	@Test
+	void snapshot_stays_stable_while_writers_change_values() throws Exception {
+		engine = open(1);
+		for (int i = 0; i < 100; i++) {
+			engine.put(key(i), value(0));
+		}
+
+		var stop = new AtomicBoolean();
+		ExecutorService writers = Executors.newFixedThreadPool(2);
+		for (int writer = 0; writer < 2; writer++) {
+			writers.submit(() -> {
+				for (int round = 1; !stop.get(); round++) {
+					for (int i = 0; i < 100; i++) {
+						engine.put(key(i), value(round));
+					}
+				}
+				return null;
+			});
+		}
+		try {
+			for (int attempt = 0; attempt < 20; attempt++) {
+				try (var snapshot = engine.snapshot()) {
+					var first = new byte[100][];
+					for (int i = 0; i < 100; i++) {
+						first[i] = snapshot.get(key(i)).value();
+					}
+					for (int read = 0; read < 3; read++) {
+						for (int i = 0; i < 100; i++) {
+							assertArrayEquals(first[i], snapshot.get(key(i)).value());
+						}
+					}
+				}
+			}
+		} finally {
+			stop.set(true);
+			writers.shutdown();
+			writers.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	void commit_transaction_across_shards() throws IOException {
+		engine = open(2);
+		for (int i = 0; i < 10; i++) {
+			engine.put(key(i), value(i));
+		}
+
+		try (var transaction = engine.begin()) {
+			engine.put(key(0), value(100));
+			for (int i = 1; i < 10; i++) {
+				transaction.put(key(i), value(i * 10));
+			}
+			transaction.remove(key(0));
+
+			assertThrows(TransactionConflictException.class, transaction::commit);
+		}
+		assertArrayEquals(value(100), engine.get(key(0)).value());
+		assertArrayEquals(value(1), engine.get(key(1)).value());
+
+		try (var transaction = engine.begin()) {
+			for (int i = 1; i < 10; i++) {
+				transaction.put(key(i), value(i * 10));
+			}
+			transaction.commit();
+		}
+		for (int i = 1; i < 10; i++) {
+			assertArrayEquals(value(i * 10), engine.get(key(i)).value());
+		}
+	}
+
+	@Test
+	void keep_no_versions_of_transaction_which_conflicts_in_one_shard() throws IOException {
+		engine = open(2);
+		for (int i = 0; i < 10; i++) {
+			engine.put(key(i), value(0));
+		}
+
+		// every key conflicts once, so some transaction conflicts only in the last shard
+		for (int conflicting = 0; conflicting < 10; conflicting++) {
+			try (var older = engine.begin(); var transaction = engine.begin()) {
+				for (int i = 0; i < 10; i++) {
+					transaction.put(key(i), value(1));
+				}
+				engine.put(key(conflicting), value(2));
+				assertThrows(TransactionConflictException.class, transaction::commit);
+
+				for (int i = 0; i < 10; i++) {
+					if (i != conflicting) {
+						older.put(key(i), value(3));
+					}
+				}
+				older.commit();
+			}
+		}
+	}
+
+	@Test
+	void snapshot_sees_transaction_in_all_shards_or_in_none() throws Exception {
+		engine = open(2);
+		for (int i = 0; i < 10; i++) {
+			engine.put(key(i), value(0));
+		}
+
+		var stop = new AtomicBoolean();
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		writer.submit(() -> {
+			for (int round = 1; !stop.get(); round++) {
+				try (var transaction = engine.begin()) {
+					for (int i = 0; i < 10; i++) {
+						transaction.put(key(i), value(round));
+					}
+					transaction.commit();
+				}
+			}
+			return null;
+		});
+		try {
+			for (int attempt = 0; attempt < 200; attempt++) {
+				try (var snapshot = engine.snapshot()) {
+					var first = snapshot.get(key(0)).value();
+					for (int i = 1; i < 10; i++) {
+						assertArrayEquals(first, snapshot.get(key(i)).value());
+					}
+				}
+			}
+		} finally {
+			stop.set(true);
+			writer.shutdown();
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	private StorageEngine open(int shards) throws IOException {
+		return StorageEngine.of(heapFilePath, 1024, PAGE_SIZE,
+				Options.defaults().withOrderedIndex(true).withShards(shards).withCompactionInterval(0));
+	}
+
+	private static byte[] key(int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+
+	private static byte[] value(int i) {
+		return ("value" + i).getBytes();
+	}
+}
@@ -0,0 +1,93 @@
+package introdb.heap.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import introdb.heap.engine.WriteAheadLog.Op;
+
+class WriteAheadLogTest {
+
+	private Path heapFilePath;
+	private Path logFilePath;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+		logFilePath = heapFilePath.resolveSibling(heapFilePath.getFileName() + ".wal");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		Files.delete(heapFilePath);
+		Files.deleteIfExists(logFilePath);
+	}
+
+	@Test
+	void replay_committed_ops() throws IOException {
+		var log = open(Options.defaults());
+		log.commit(Op.put(new byte[] {1}, new byte[] {2}));
+		log.commit(List.of(Op.remove(new byte[] {1}), Op.put(new byte[] {3}, new byte[] {4})));
+		log.close();
+
+		var ops = replay(open(Options.defaults()));
+
+		assertEquals(3, ops.size());
+		assertTrue(ops.get(0).isPut());
+		assertFalse(ops.get(1).isPut());
+		assertArrayEquals(new byte[] {4}, ops.get(2).value());
+	}
+
+	@Test
+	void skip_torn_record_at_the_end_of_log() throws IOException {
+		var log = open(Options.defaults().withSyncPolicy(SyncPolicy.OS));
+		log.commit(Op.put(new byte[] {1}, new byte[] {2}));
+		log.commit(Op.put(new byte[] {3}, new byte[] {4}));
+		log.close();
+
+		try (var channel = FileChannel.open(logFilePath, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 1);
+		}
+
+		var ops = replay(open(Options.defaults()));
+
+		assertEquals(1, ops.size());
+		assertArrayEquals(new byte[] {1}, ops.get(0).key());
+	}
+
+	@Test
+	void discard_ops_after_truncate() throws IOException {
+		var log = open(Options.defaults().withSyncPolicy(SyncPolicy.INTERVAL));
+		log.commit(Op.put(new byte[] {1}, new byte[] {2}));
+		log.truncate();
+		log.close();
+
+		assertTrue(replay(open(Options.defaults())).isEmpty());
+	}
+
+	private WriteAheadLog open(Options options) throws IOException {
+		var log = WriteAheadLog.of(heapFilePath, options);
+		log.open();
+		return log;
+	}
+
+	private List<Op> replay(WriteAheadLog log) throws IOException {
+		var ops = new ArrayList<Op>();
+		log.replay(ops::add);
+		log.close();
+		return ops;
+	}
+}
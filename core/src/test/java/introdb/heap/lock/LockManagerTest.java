@@ -6,11 +6,17 @@ import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.Mockito.verify;
@@ -68,15 +74,47 @@ public class LockManagerTest {
 	}
 
 	@Test
-	public void get_new_lock_for_page_when_lock_was_used() throws Exception {
+	public void use_same_lock_for_page_when_lock_was_used() throws Exception {
+		var lockManager = new LockManager(16);
 		var lock0 = lockManager.lockForPage(0);
-		var lock0ToString = lock0.toString();
 
 		lock0.inReadOperation(Object::new).join();
 
-		assertNotEquals(lock0ToString, lockManager.lockForPage(0).toString());
+		assertSame(lock0, lockManager.lockForPage(0));
+	}
+
+	@Test
+	public void use_different_locks_for_neighbouring_pages() throws Exception {
+		var lockManager = new LockManager(16);
+
+		for (int page = 0; page < 15; page++) {
+			assertNotSame(lockManager.lockForPage(page), lockManager.lockForPage(page + 1));
+		}
+		assertSame(lockManager.lockForPage(0), lockManager.lockForPage(16));
 	}
 	
+	@Test
+	public void lock_overlapping_keys_given_in_any_order() throws Exception {
+		var lockManager = new LockManager(16);
+		var keys = new ArrayList<byte[]>();
+		for (byte key = 0; key < 32; key++) {
+			keys.add(new byte[] {key});
+		}
+		var reversed = new ArrayList<>(keys);
+		Collections.reverse(reversed);
+
+		var executor = Executors.newFixedThreadPool(2);
+		try {
+			var first = executor.submit(() -> lockRepeatedly(lockManager, keys));
+			var second = executor.submit(() -> lockRepeatedly(lockManager, reversed));
+
+			first.get(10, TimeUnit.SECONDS);
+			second.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	public void execute_op_in_readlock() throws Exception {
 		var lockSupport = lockManager.lockForPage(0);
@@ -98,4 +136,11 @@ public class LockManagerTest {
 		verify(writeLockSpy).lock();
 		verify(writeLockSpy).unlock();		
 	}
+
+	private static Void lockRepeatedly(LockManager lockManager, List<byte[]> keys) {
+		for (int i = 0; i < 10_000; i++) {
+			lockManager.lockKeys(keys).close();
+		}
+		return null;
+	}
 }
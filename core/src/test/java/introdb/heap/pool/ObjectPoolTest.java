@@ -5,8 +5,15 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
@@ -82,4 +89,58 @@ class ObjectPoolTest {
 		assertNotSame(second.get(),first.get());
 	}
 
+	@Test
+	void fail_borrow_with_timeout_when_out_of_objects() throws Exception {
+		objectPool = new ObjectPool<>(Object::new, obj -> true, 1);
+
+		var first = objectPool.borrowObject(1, TimeUnit.SECONDS);
+		var second = objectPool.borrowObject(10, TimeUnit.MILLISECONDS);
+
+		assertNotNull(first.get(1, TimeUnit.SECONDS));
+		assertThatThrownBy(() -> second.get(1, TimeUnit.SECONDS)).hasCauseInstanceOf(TimeoutException.class);
+		assertEquals(0, objectPool.getWaiting());
+	}
+
+	@Test
+	void hand_returned_object_to_next_waiter_when_first_cancelled() throws Exception {
+		objectPool = new ObjectPool<>(Object::new, obj -> true, 1);
+
+		var first = objectPool.borrowObject();
+		var cancelled = objectPool.borrowObject();
+		var waiting = objectPool.borrowObject();
+
+		cancelled.cancel(false);
+		objectPool.returnObject(first.get());
+
+		assertEquals(first.get(), waiting.get(1, TimeUnit.SECONDS));
+		assertEquals(1, objectPool.getPoolSize());
+	}
+
+	@Test
+	void never_exceed_max_pool_size() throws Exception {
+		objectPool = new ObjectPool<>(Object::new, obj -> true, 4);
+		var created = ConcurrentHashMap.newKeySet();
+
+		var executor = Executors.newFixedThreadPool(8);
+		try {
+			var tasks = new ArrayList<Callable<Object>>();
+			for (int i = 0; i < 1000; i++) {
+				tasks.add(() -> {
+					var obj = objectPool.borrowObject().get(10, TimeUnit.SECONDS);
+					created.add(obj);
+					objectPool.returnObject(obj);
+					return obj;
+				});
+			}
+			for (var future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertTrue(created.size() <= 4);
+		assertEquals(created.size(), objectPool.getPoolSize());
+		assertEquals(0, objectPool.getInUse());
+	}
 }